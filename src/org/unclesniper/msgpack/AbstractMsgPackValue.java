@@ -0,0 +1,89 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+
+abstract class AbstractMsgPackValue implements MsgPackValue {
+
+	AbstractMsgPackValue() {}
+
+	protected UnexpectedValueTypeException expected(MsgPackType type) {
+		return new UnexpectedValueTypeException(type, getType());
+	}
+
+	@Override
+	public boolean isNil() {
+		return getType() == MsgPackType.NIL;
+	}
+
+	@Override
+	public boolean asBoolean() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.BOOLEAN);
+	}
+
+	@Override
+	public long asLong() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.INTEGER);
+	}
+
+	@Override
+	public boolean isSignedInteger() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.INTEGER);
+	}
+
+	@Override
+	public double asDouble() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.FLOAT);
+	}
+
+	@Override
+	public String asString() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.STRING);
+	}
+
+	@Override
+	public byte[] asBytes() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.BINARY);
+	}
+
+	@Override
+	public ByteBuffer asByteBuffer() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.BINARY);
+	}
+
+	@Override
+	public byte getExtensionType() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.EXTENSION);
+	}
+
+	@Override
+	public int size() throws MsgPackWireFormatException {
+		throw expected(MsgPackType.ARRAY);
+	}
+
+	@Override
+	public MsgPackValue get(int index) throws MsgPackWireFormatException {
+		throw expected(MsgPackType.ARRAY);
+	}
+
+	@Override
+	public MsgPackValue get(String key) throws MsgPackWireFormatException {
+		throw expected(MsgPackType.MAP);
+	}
+
+	@Override
+	public MsgPackValue getKey(int index) throws MsgPackWireFormatException {
+		throw expected(MsgPackType.MAP);
+	}
+
+	@Override
+	public MsgPackValue getValue(int index) throws MsgPackWireFormatException {
+		throw expected(MsgPackType.MAP);
+	}
+
+	static double unsignedToDouble(long value) {
+		if(value >= 0l)
+			return (double)value;
+		return (double)(value >>> 1) * 2.0 + (double)(value & 1l);
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+public abstract class AbstractProxyMsgPackByteSink extends AbstractProxyMsgPackSink implements MsgPackByteBufferSink {
+
+	public AbstractProxyMsgPackByteSink(MsgPackByteSink slave) {
+		super(slave);
+	}
+
+	public final MsgPackByteSink getSlave() {
+		return (MsgPackByteSink)getRawSlave();
+	}
+
+	protected final void setSlave(MsgPackByteSink slave) {
+		setRawSlave(slave);
+	}
+
+	@Override
+	public int string(byte[] bytes, int offset, int count) throws IOException {
+		return getSlave().string(bytes, offset, count);
+	}
+
+	@Override
+	public int beginString(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		return getSlave().beginString(totalSize, bytes, offset, count);
+	}
+
+	@Override
+	public int continueString(byte[] bytes, int offset, int count) throws IOException {
+		return getSlave().continueString(bytes, offset, count);
+	}
+
+	@Override
+	public int endString(byte[] bytes, int offset, int count) throws IOException {
+		return getSlave().endString(bytes, offset, count);
+	}
+
+	@Override
+	public void string(ByteBuffer bytes) throws IOException {
+		((MsgPackByteBufferSink)getRawSlave()).string(bytes);
+	}
+
+	@Override
+	public void binary(ByteBuffer bytes) throws IOException {
+		((MsgPackByteBufferSink)getRawSlave()).binary(bytes);
+	}
+
+	@Override
+	public void extension(byte type, ByteBuffer bytes) throws IOException {
+		((MsgPackByteBufferSink)getRawSlave()).extension(type, bytes);
+	}
+
+	@Override
+	public boolean acceptsPayloadBuffers() {
+		MsgPackSink slave = getRawSlave();
+		return slave instanceof MsgPackByteBufferSink && ((MsgPackByteBufferSink)slave).acceptsPayloadBuffers();
+	}
+
+}
@@ -2,7 +2,7 @@ package org.unclesniper.msgpack;
 
 import java.io.IOException;
 
-public abstract class AbstractProxyMsgPackSink implements MsgPackSink {
+public abstract class AbstractProxyMsgPackSink implements MsgPackBackPressureSink {
 
 	private MsgPackSink slave;
 
@@ -93,6 +93,11 @@ public abstract class AbstractProxyMsgPackSink implements MsgPackSink {
 		return slave.isBlockingSink();
 	}
 
+	@Override
+	public boolean isStalled() {
+		return MsgPackBackPressureSink.isSinkStalled(slave);
+	}
+
 	@Override
 	public void emptyArray() throws IOException {
 		slave.emptyArray();
@@ -0,0 +1,298 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+final class BeanMsgPackDeserializer implements MsgPackDeserializer<Object> {
+
+	private static final int KIND_LONG = 0;
+
+	private static final int KIND_BOOLEAN = 1;
+
+	private static final int KIND_DOUBLE = 2;
+
+	private static final int KIND_STRING = 3;
+
+	private static final int KIND_OBJECT = 4;
+
+	private static final long[] NO_LONGS = new long[0];
+
+	private static final double[] NO_DOUBLES = new double[0];
+
+	private static final Object[] NO_REFS = new Object[0];
+
+	private final MsgPackKeyTable keys;
+
+	private final int[] kinds;
+
+	private final Class<?>[] types;
+
+	// resolved on first use, so that self-referential types do not recurse
+	private final MsgPackDeserializer<?>[] nested;
+
+	// records: index of each property within the longs, doubles or refs slots
+	private final int[] slots;
+
+	private final int longCount;
+
+	private final int doubleCount;
+
+	private final int refCount;
+
+	// records: (long[], double[], Object[])Object, feeding the canonical constructor
+	private final MethodHandle factory;
+
+	// POJOs: ()Object
+	private final MethodHandle constructor;
+
+	/* POJOs; null for properties that cannot be set:
+	 *   KIND_LONG:                 (Object, long)void
+	 *   KIND_BOOLEAN:              (Object, boolean)void
+	 *   KIND_DOUBLE:               (Object, double)void
+	 *   KIND_STRING, KIND_OBJECT:  (Object, Object)void
+	 */
+	private final MethodHandle[] setters;
+
+	BeanMsgPackDeserializer(MsgPackBeanInfo info) {
+		MsgPackBeanInfo.Property[] properties = info.properties;
+		byte[][] names = new byte[properties.length][];
+		kinds = new int[properties.length];
+		types = new Class<?>[properties.length];
+		nested = new MsgPackDeserializer<?>[properties.length];
+		slots = new int[properties.length];
+		int longs = 0, doubles = 0, refs = 0;
+		for(int i = 0; i < properties.length; ++i) {
+			Class<?> type = properties[i].type;
+			names[i] = properties[i].key;
+			types[i] = type;
+			if(type == boolean.class) {
+				kinds[i] = BeanMsgPackDeserializer.KIND_BOOLEAN;
+				slots[i] = longs++;
+			}
+			else if(type == double.class || type == float.class) {
+				kinds[i] = BeanMsgPackDeserializer.KIND_DOUBLE;
+				slots[i] = doubles++;
+			}
+			else if(type.isPrimitive()) {
+				kinds[i] = BeanMsgPackDeserializer.KIND_LONG;
+				slots[i] = longs++;
+			}
+			else {
+				kinds[i] = type == String.class ? BeanMsgPackDeserializer.KIND_STRING
+						: BeanMsgPackDeserializer.KIND_OBJECT;
+				slots[i] = refs++;
+			}
+		}
+		keys = new MsgPackKeyTable(names);
+		longCount = longs;
+		doubleCount = doubles;
+		refCount = refs;
+		if(info.constructor == null)
+			throw new IllegalArgumentException("No nullary constructor in type: " + info.type.getName());
+		if(info.record) {
+			factory = makeFactory(info.constructor);
+			constructor = null;
+			setters = null;
+		}
+		else {
+			factory = null;
+			constructor = info.constructor.asType(MethodType.methodType(Object.class));
+			setters = new MethodHandle[properties.length];
+			for(int i = 0; i < properties.length; ++i) {
+				MethodHandle setter = properties[i].setter;
+				if(setter == null)
+					continue;
+				MethodHandle conversion = BeanMsgPackDeserializer.conversion(slotType(i), types[i]);
+				if(conversion != null)
+					setter = MethodHandles.filterArguments(setter, 1, conversion);
+				setters[i] = setter.asType(MethodType.methodType(void.class, Object.class, slotType(i)));
+			}
+		}
+	}
+
+	private Class<?> slotType(int property) {
+		switch(kinds[property]) {
+			case BeanMsgPackDeserializer.KIND_LONG:
+				return long.class;
+			case BeanMsgPackDeserializer.KIND_BOOLEAN:
+				return boolean.class;
+			case BeanMsgPackDeserializer.KIND_DOUBLE:
+				return double.class;
+			default:
+				return Object.class;
+		}
+	}
+
+	/* (from)to for primitive slots holding a narrower property type; null where
+	 * asType will do. Integers are range-checked, so nothing gets truncated.
+	 */
+	private static MethodHandle conversion(Class<?> from, Class<?> to) {
+		Class<?> owner = MsgPackReader.class;
+		String name;
+		if(from == to || !to.isPrimitive())
+			return null;
+		else if(to == int.class)
+			name = "toInt";
+		else if(to == short.class)
+			name = "toShort";
+		else if(to == byte.class)
+			name = "toByte";
+		else if(to == char.class)
+			name = "toChar";
+		else {
+			owner = BeanMsgPackDeserializer.class;
+			name = to == boolean.class ? "toBoolean" : "toFloat";
+		}
+		try {
+			return MethodHandles.lookup().findStatic(owner, name, MethodType.methodType(to, from));
+		}
+		catch(ReflectiveOperationException roe) {
+			throw new Doom("No conversion from " + from.getName() + " to " + to.getName());
+		}
+	}
+
+	// records store booleans as 0 or 1
+	private static boolean toBoolean(long value) {
+		return value != 0l;
+	}
+
+	private static float toFloat(double value) {
+		return (float)value;
+	}
+
+	private MethodHandle makeFactory(MethodHandle canonical) {
+		MethodHandle[] filters = new MethodHandle[kinds.length];
+		int[] reorder = new int[kinds.length];
+		for(int i = 0; i < kinds.length; ++i) {
+			Class<?> array;
+			switch(kinds[i]) {
+				case BeanMsgPackDeserializer.KIND_LONG:
+				case BeanMsgPackDeserializer.KIND_BOOLEAN:
+					array = long[].class;
+					reorder[i] = 0;
+					break;
+				case BeanMsgPackDeserializer.KIND_DOUBLE:
+					array = double[].class;
+					reorder[i] = 1;
+					break;
+				default:
+					array = Object[].class;
+					reorder[i] = 2;
+					break;
+			}
+			MethodHandle element = MethodHandles.insertArguments(MethodHandles.arrayElementGetter(array), 1, slots[i]);
+			MethodHandle conversion = BeanMsgPackDeserializer.conversion(array.getComponentType(), types[i]);
+			if(conversion != null)
+				element = MethodHandles.filterReturnValue(element, conversion);
+			filters[i] = element.asType(MethodType.methodType(types[i], array));
+		}
+		MethodHandle spread = MethodHandles.filterArguments(canonical, 0, filters);
+		spread = spread.asType(spread.type().changeReturnType(Object.class));
+		return MethodHandles.permuteArguments(spread,
+				MethodType.methodType(Object.class, long[].class, double[].class, Object[].class), reorder);
+	}
+
+	private MsgPackDeserializer<?> nested(int property) {
+		MsgPackDeserializer<?> deserializer = nested[property];
+		if(deserializer == null)
+			nested[property] = deserializer = MsgPackDeserializers.forClass(types[property]);
+		return deserializer;
+	}
+
+	@Override
+	public Object deserialize(MsgPackReader reader) throws IOException {
+		if(MsgPackDeserializers.readNil(reader))
+			return null;
+		int count = reader.readMapHeader();
+		try {
+			if(factory != null)
+				return deserializeRecord(reader, count);
+			else
+				return deserializeBean(reader, count);
+		}
+		catch(IOException | RuntimeException | Error e) {
+			throw e;
+		}
+		catch(Throwable t) {
+			throw MsgPackBeanInfo.rethrow(t);
+		}
+	}
+
+	private Object deserializeRecord(MsgPackReader reader, int count) throws Throwable {
+		long[] longs = longCount == 0 ? BeanMsgPackDeserializer.NO_LONGS : new long[longCount];
+		double[] doubles = doubleCount == 0 ? BeanMsgPackDeserializer.NO_DOUBLES : new double[doubleCount];
+		Object[] refs = refCount == 0 ? BeanMsgPackDeserializer.NO_REFS : new Object[refCount];
+		for(; count > 0; --count) {
+			int property = reader.readKey(keys);
+			if(property < 0) {
+				reader.skipValue();
+				continue;
+			}
+			int slot = slots[property];
+			// primitives keep their default
+			if(MsgPackDeserializers.readNil(reader))
+				continue;
+			switch(kinds[property]) {
+				case BeanMsgPackDeserializer.KIND_LONG:
+					longs[slot] = reader.readLong();
+					break;
+				case BeanMsgPackDeserializer.KIND_BOOLEAN:
+					longs[slot] = reader.readBoolean() ? 1l : 0l;
+					break;
+				case BeanMsgPackDeserializer.KIND_DOUBLE:
+					doubles[slot] = MsgPackDeserializers.readNumber(reader);
+					break;
+				case BeanMsgPackDeserializer.KIND_STRING:
+					refs[slot] = reader.readString();
+					break;
+				case BeanMsgPackDeserializer.KIND_OBJECT:
+					refs[slot] = nested(property).deserialize(reader);
+					break;
+				default:
+					throw new Doom("Unrecognized property kind: " + kinds[property]);
+			}
+		}
+		return (Object)factory.invokeExact(longs, doubles, refs);
+	}
+
+	private Object deserializeBean(MsgPackReader reader, int count) throws Throwable {
+		Object bean = (Object)constructor.invokeExact();
+		for(; count > 0; --count) {
+			int property = reader.readKey(keys);
+			MethodHandle setter = property < 0 ? null : setters[property];
+			if(setter == null) {
+				reader.skipValue();
+				continue;
+			}
+			if(MsgPackDeserializers.readNil(reader)) {
+				if(kinds[property] == BeanMsgPackDeserializer.KIND_STRING
+						|| kinds[property] == BeanMsgPackDeserializer.KIND_OBJECT)
+					setter.invokeExact(bean, (Object)null);
+				continue;
+			}
+			switch(kinds[property]) {
+				case BeanMsgPackDeserializer.KIND_LONG:
+					setter.invokeExact(bean, reader.readLong());
+					break;
+				case BeanMsgPackDeserializer.KIND_BOOLEAN:
+					setter.invokeExact(bean, reader.readBoolean());
+					break;
+				case BeanMsgPackDeserializer.KIND_DOUBLE:
+					setter.invokeExact(bean, MsgPackDeserializers.readNumber(reader));
+					break;
+				case BeanMsgPackDeserializer.KIND_STRING:
+					setter.invokeExact(bean, (Object)reader.readString());
+					break;
+				case BeanMsgPackDeserializer.KIND_OBJECT:
+					setter.invokeExact(bean, (Object)nested(property).deserialize(reader));
+					break;
+				default:
+					throw new Doom("Unrecognized property kind: " + kinds[property]);
+			}
+		}
+		return bean;
+	}
+
+}
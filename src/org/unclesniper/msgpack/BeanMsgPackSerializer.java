@@ -0,0 +1,130 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+
+final class BeanMsgPackSerializer implements MsgPackSerializer<Object> {
+
+	private static final int KIND_SIGNED = 0;
+
+	private static final int KIND_UNSIGNED = 1;
+
+	private static final int KIND_FRACTION = 2;
+
+	private static final int KIND_BOOLEAN = 3;
+
+	private static final int KIND_STRING = 4;
+
+	private static final int KIND_OBJECT = 5;
+
+	private final int[] kinds;
+
+	private final byte[][] keys;
+
+	/* Adapted so that each kind has one exact type:
+	 *   KIND_SIGNED, KIND_UNSIGNED: (Object)long
+	 *   KIND_FRACTION:              (Object)double
+	 *   KIND_BOOLEAN:               (Object)boolean
+	 *   KIND_STRING:                (Object)String
+	 *   KIND_OBJECT:                (Object)Object
+	 */
+	private final MethodHandle[] getters;
+
+	BeanMsgPackSerializer(MsgPackBeanInfo info) {
+		MsgPackBeanInfo.Property[] properties = info.properties;
+		kinds = new int[properties.length];
+		keys = new byte[properties.length][];
+		getters = new MethodHandle[properties.length];
+		for(int i = 0; i < properties.length; ++i) {
+			MsgPackBeanInfo.Property property = properties[i];
+			Class<?> type = property.type;
+			Class<?> exact;
+			if(type == long.class || type == int.class || type == short.class || type == byte.class) {
+				kinds[i] = BeanMsgPackSerializer.KIND_SIGNED;
+				exact = long.class;
+			}
+			else if(type == char.class) {
+				kinds[i] = BeanMsgPackSerializer.KIND_UNSIGNED;
+				exact = long.class;
+			}
+			else if(type == double.class || type == float.class) {
+				kinds[i] = BeanMsgPackSerializer.KIND_FRACTION;
+				exact = double.class;
+			}
+			else if(type == boolean.class) {
+				kinds[i] = BeanMsgPackSerializer.KIND_BOOLEAN;
+				exact = boolean.class;
+			}
+			else if(type == String.class) {
+				kinds[i] = BeanMsgPackSerializer.KIND_STRING;
+				exact = String.class;
+			}
+			else {
+				kinds[i] = BeanMsgPackSerializer.KIND_OBJECT;
+				exact = Object.class;
+			}
+			keys[i] = property.key;
+			getters[i] = property.getter.asType(MethodType.methodType(exact, Object.class));
+		}
+	}
+
+	@Override
+	public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+		if(kinds.length == 0) {
+			sink.emptyMap();
+			return;
+		}
+		sink.beginMap(kinds.length);
+		MsgPackByteSink keySink = sink.getSlave();
+		try {
+			for(int i = 0; i < kinds.length; ++i) {
+				byte[] key = keys[i];
+				if(key.length == 0)
+					keySink.emptyString();
+				else {
+					int written = keySink.string(key, 0, key.length);
+					if(written != key.length)
+						throw new SynchronicityViolationException(key.length, written);
+				}
+				MethodHandle getter = getters[i];
+				switch(kinds[i]) {
+					case BeanMsgPackSerializer.KIND_SIGNED:
+						sink.integer((long)getter.invokeExact(value), true);
+						break;
+					case BeanMsgPackSerializer.KIND_UNSIGNED:
+						sink.integer((long)getter.invokeExact(value), false);
+						break;
+					case BeanMsgPackSerializer.KIND_FRACTION:
+						sink.fraction((double)getter.invokeExact(value));
+						break;
+					case BeanMsgPackSerializer.KIND_BOOLEAN:
+						sink.bool((boolean)getter.invokeExact(value));
+						break;
+					case BeanMsgPackSerializer.KIND_STRING:
+						{
+							String s = (String)getter.invokeExact(value);
+							if(s == null)
+								sink.nil();
+							else
+								MsgPackSerializers.writeString(s, sink);
+						}
+						break;
+					case BeanMsgPackSerializer.KIND_OBJECT:
+						MsgPackSerializers.serialize((Object)getter.invokeExact(value), sink);
+						break;
+					default:
+						throw new Doom("Unrecognized property kind: " + kinds[i]);
+				}
+			}
+		}
+		catch(IOException | RuntimeException | Error e) {
+			throw e;
+		}
+		catch(Throwable t) {
+			throw MsgPackBeanInfo.rethrow(t);
+		}
+		sink.endMap();
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.unclesniper.msgpack;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+public class BufferedMsgPackWriter implements MsgPackWriter, Flushable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private MsgPackWriter slave;
+
+	private final byte[] buffer;
+
+	private int bufferFill;
+
+	private int flushThreshold;
+
+	public BufferedMsgPackWriter(MsgPackWriter slave) {
+		this(slave, 0, 0);
+	}
+
+	public BufferedMsgPackWriter(MsgPackWriter slave, int bufferSize) {
+		this(slave, bufferSize, 0);
+	}
+
+	public BufferedMsgPackWriter(MsgPackWriter slave, int bufferSize, int flushThreshold) {
+		this.slave = slave;
+		buffer = new byte[bufferSize > 0 ? bufferSize : BufferedMsgPackWriter.DEFAULT_BUFFER_SIZE];
+		setFlushThreshold(flushThreshold);
+	}
+
+	public MsgPackWriter getSlave() {
+		return slave;
+	}
+
+	public void setSlave(MsgPackWriter slave) throws IOException {
+		flush();
+		this.slave = slave;
+	}
+
+	public int getBufferSize() {
+		return buffer.length;
+	}
+
+	public int getBufferFill() {
+		return bufferFill;
+	}
+
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold > 0 && flushThreshold < buffer.length ? flushThreshold : buffer.length;
+	}
+
+	@Override
+	public boolean isBlockingWriter() {
+		return slave.isBlockingWriter();
+	}
+
+	@Override
+	public void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+		if(length <= 0)
+			return;
+		if(length >= buffer.length) {
+			// pass-through: no point in copying what would fill the buffer anyway
+			flush();
+			slave.writeChunk(bytes, offset, length);
+			return;
+		}
+		if(length > buffer.length - bufferFill)
+			flush();
+		System.arraycopy(bytes, offset, buffer, bufferFill, length);
+		bufferFill += length;
+		if(bufferFill >= flushThreshold)
+			flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(bufferFill == 0)
+			return;
+		slave.writeChunk(buffer, 0, bufferFill);
+		bufferFill = 0;
+	}
+
+	public void discard() {
+		bufferFill = 0;
+	}
+
+}
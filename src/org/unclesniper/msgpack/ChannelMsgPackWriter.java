@@ -0,0 +1,139 @@
+package org.unclesniper.msgpack;
+
+import java.io.Flushable;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+public class ChannelMsgPackWriter implements MsgPackWriter, Flushable {
+
+	public static final int DEFAULT_GATHER_THRESHOLD = 512;
+
+	private final WritableByteChannel channel;
+
+	private final GatheringByteChannel gatheringChannel;
+
+	private final DirectByteBufferPool pool;
+
+	private ByteBuffer buffer;
+
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+
+	private int gatherThreshold;
+
+	public ChannelMsgPackWriter(WritableByteChannel channel) {
+		this(channel, null, 0);
+	}
+
+	public ChannelMsgPackWriter(WritableByteChannel channel, DirectByteBufferPool pool) {
+		this(channel, pool, 0);
+	}
+
+	public ChannelMsgPackWriter(WritableByteChannel channel, DirectByteBufferPool pool, int gatherThreshold) {
+		if(channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking())
+			throw new IllegalArgumentException("Channel must be in blocking mode");
+		this.channel = channel;
+		gatheringChannel = channel instanceof GatheringByteChannel ? (GatheringByteChannel)channel : null;
+		this.pool = pool == null ? DirectByteBufferPool.getDefaultPool() : pool;
+		buffer = this.pool.acquire();
+		setGatherThreshold(gatherThreshold);
+	}
+
+	public WritableByteChannel getChannel() {
+		return channel;
+	}
+
+	public DirectByteBufferPool getPool() {
+		return pool;
+	}
+
+	public int getGatherThreshold() {
+		return gatherThreshold;
+	}
+
+	public void setGatherThreshold(int gatherThreshold) {
+		if(gatherThreshold <= 0)
+			gatherThreshold = ChannelMsgPackWriter.DEFAULT_GATHER_THRESHOLD;
+		int capacity = pool.getBufferSize();
+		this.gatherThreshold = gatherThreshold < capacity ? gatherThreshold : capacity;
+	}
+
+	@Override
+	public boolean isBlockingWriter() {
+		return true;
+	}
+
+	private void requireBuffer() {
+		if(buffer == null)
+			throw new IllegalStateException("Writer has already been released");
+	}
+
+	private void writeFully(ByteBuffer source) throws IOException {
+		while(source.hasRemaining())
+			channel.write(source);
+	}
+
+	@Override
+	public void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+		requireBuffer();
+		if(length <= 0)
+			return;
+		if(length < gatherThreshold) {
+			if(length > buffer.remaining())
+				flush();
+			buffer.put(bytes, offset, length);
+			return;
+		}
+		ByteBuffer payload = ByteBuffer.wrap(bytes, offset, length);
+		if(buffer.position() == 0) {
+			writeFully(payload);
+			return;
+		}
+		buffer.flip();
+		try {
+			if(gatheringChannel != null) {
+				gather[0] = buffer;
+				gather[1] = payload;
+				while(payload.hasRemaining())
+					gatheringChannel.write(gather, 0, 2);
+			}
+			else {
+				writeFully(buffer);
+				writeFully(payload);
+			}
+		}
+		finally {
+			gather[0] = gather[1] = null;
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		requireBuffer();
+		if(buffer.position() == 0)
+			return;
+		buffer.flip();
+		try {
+			writeFully(buffer);
+		}
+		finally {
+			buffer.clear();
+		}
+	}
+
+	public void release() throws IOException {
+		if(buffer == null)
+			return;
+		try {
+			flush();
+		}
+		finally {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+}
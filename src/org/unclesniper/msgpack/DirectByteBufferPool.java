@@ -0,0 +1,62 @@
+package org.unclesniper.msgpack;
+
+import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+
+public class DirectByteBufferPool {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+
+	private static final DirectByteBufferPool defaultPool = new DirectByteBufferPool(0, 0);
+
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+	private final int bufferSize;
+
+	private final int maxPooledBuffers;
+
+	public DirectByteBufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize > 0 ? bufferSize : DirectByteBufferPool.DEFAULT_BUFFER_SIZE;
+		this.maxPooledBuffers = maxPooledBuffers > 0
+				? maxPooledBuffers : DirectByteBufferPool.DEFAULT_MAX_POOLED_BUFFERS;
+	}
+
+	public static DirectByteBufferPool getDefaultPool() {
+		return DirectByteBufferPool.defaultPool;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getMaxPooledBuffers() {
+		return maxPooledBuffers;
+	}
+
+	public synchronized int getPooledBufferCount() {
+		return buffers.size();
+	}
+
+	public ByteBuffer acquire() {
+		ByteBuffer buffer;
+		synchronized(this) {
+			buffer = buffers.pollFirst();
+		}
+		if(buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || !buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != bufferSize)
+			return;
+		synchronized(this) {
+			if(buffers.size() < maxPooledBuffers)
+				buffers.addFirst(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,19 @@
+package org.unclesniper.msgpack;
+
+/* Non-blocking producers (such as MsgPackDecoder) normally hand control back
+ * to their caller after every event sent to a non-blocking sink. Sinks that
+ * implement this interface are asked after each event instead, and events
+ * keep coming for as long as they do not report being stalled.
+ */
+public interface MsgPackBackPressureSink extends MsgPackSink {
+
+	boolean isStalled();
+
+	// sinks that cannot tell are considered stalled iff they are non-blocking
+	static boolean isSinkStalled(MsgPackSink sink) {
+		if(sink instanceof MsgPackBackPressureSink)
+			return ((MsgPackBackPressureSink)sink).isStalled();
+		return !sink.isBlockingSink();
+	}
+
+}
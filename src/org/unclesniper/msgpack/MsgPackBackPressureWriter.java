@@ -0,0 +1,8 @@
+package org.unclesniper.msgpack;
+
+public interface MsgPackBackPressureWriter extends MsgPackWriter {
+
+	// whether the writer would rather not be handed more output right now
+	boolean isStalled();
+
+}
@@ -0,0 +1,130 @@
+package org.unclesniper.msgpack;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.RecordComponent;
+import java.nio.charset.StandardCharsets;
+
+final class MsgPackBeanInfo {
+
+	static final class Property {
+
+		final String name;
+
+		final byte[] key;
+
+		final Class<?> type;
+
+		// (Object)type
+		final MethodHandle getter;
+
+		// (Object, type)void; null for records and final fields
+		final MethodHandle setter;
+
+		Property(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+			this.name = name;
+			key = name.getBytes(StandardCharsets.UTF_8);
+			this.type = type;
+			this.getter = getter.asType(MethodType.methodType(type, Object.class));
+			this.setter = setter == null ? null : setter.asType(MethodType.methodType(void.class, Object.class, type));
+		}
+
+	}
+
+	private static final ClassValue<MsgPackBeanInfo> INFOS = new ClassValue<MsgPackBeanInfo>() {
+
+		@Override
+		protected MsgPackBeanInfo computeValue(Class<?> type) {
+			return new MsgPackBeanInfo(type);
+		}
+
+	};
+
+	final Class<?> type;
+
+	final boolean record;
+
+	final Property[] properties;
+
+	// records: the canonical constructor, taking the components in order;
+	// otherwise: the no-argument constructor, or null if there is none
+	final MethodHandle constructor;
+
+	private MsgPackBeanInfo(Class<?> type) {
+		this.type = type;
+		record = type.isRecord();
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			if(record) {
+				RecordComponent[] components = type.getRecordComponents();
+				properties = new Property[components.length];
+				Class<?>[] componentTypes = new Class<?>[components.length];
+				for(int i = 0; i < components.length; ++i) {
+					RecordComponent component = components[i];
+					componentTypes[i] = component.getType();
+					properties[i] = new Property(component.getName(), component.getType(),
+							lookup.unreflect(MsgPackBeanInfo.accessible(component.getAccessor())), null);
+				}
+				Constructor<?> canonical = type.getDeclaredConstructor(componentTypes);
+				constructor = lookup.unreflectConstructor(MsgPackBeanInfo.accessible(canonical));
+			}
+			else {
+				List<Property> list = new ArrayList<Property>();
+				MsgPackBeanInfo.collectFields(type, lookup, list);
+				properties = list.toArray(new Property[list.size()]);
+				Constructor<?> nullary;
+				try {
+					nullary = type.getDeclaredConstructor();
+				}
+				catch(NoSuchMethodException nsme) {
+					nullary = null;
+				}
+				constructor = nullary == null || Modifier.isAbstract(type.getModifiers()) ? null
+						: lookup.unreflectConstructor(MsgPackBeanInfo.accessible(nullary));
+			}
+		}
+		catch(ReflectiveOperationException | RuntimeException e) {
+			throw new IllegalArgumentException("Cannot introspect " + type.getName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	static MsgPackBeanInfo of(Class<?> type) {
+		return MsgPackBeanInfo.INFOS.get(type);
+	}
+
+	private static void collectFields(Class<?> type, MethodHandles.Lookup lookup, List<Property> list)
+			throws IllegalAccessException {
+		Class<?> superclass = type.getSuperclass();
+		if(superclass != null && superclass != Object.class)
+			MsgPackBeanInfo.collectFields(superclass, lookup, list);
+		for(Field field : type.getDeclaredFields()) {
+			int modifiers = field.getModifiers();
+			if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+				continue;
+			MsgPackBeanInfo.accessible(field);
+			list.add(new Property(field.getName(), field.getType(), lookup.unreflectGetter(field),
+					Modifier.isFinal(modifiers) ? null : lookup.unreflectSetter(field)));
+		}
+	}
+
+	private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member) {
+		if(!member.trySetAccessible())
+			throw new IllegalArgumentException("Member is not accessible: " + member);
+		return member;
+	}
+
+	static RuntimeException rethrow(Throwable t) {
+		if(t instanceof RuntimeException)
+			return (RuntimeException)t;
+		if(t instanceof Error)
+			throw (Error)t;
+		return new java.lang.reflect.UndeclaredThrowableException(t);
+	}
+
+}
@@ -0,0 +1,23 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+public interface MsgPackByteBufferSink extends MsgPackByteSink {
+
+	/* Payloads from MsgPackDecoder are read-only views, so hasArray() is false
+	 * even over heap input. Sinks that need the bytes in an array should bulk-get
+	 * them (or decline buffers altogether, and take the byte[] events, which carry
+	 * a contiguous payload straight from the input); slices pay off for sinks
+	 * that hand them on unchanged, e.g. to a channel.
+	 */
+
+	void string(ByteBuffer bytes) throws IOException;
+
+	void binary(ByteBuffer bytes) throws IOException;
+
+	void extension(byte type, ByteBuffer bytes) throws IOException;
+
+	boolean acceptsPayloadBuffers();
+
+}
@@ -12,4 +12,35 @@ public interface MsgPackCharSink extends MsgPackSink {
 
 	int endString(char[] chars, int offset, int count) throws IOException;
 
+	default int string(CharSequence chars) throws IOException {
+		return string(chars, 0, chars.length());
+	}
+
+	default int string(CharSequence chars, int offset, int count) throws IOException {
+		return string(MsgPackCharSink.toChars(chars, offset, count), 0, count);
+	}
+
+	default int beginString(int totalSizeInBytes, CharSequence chars, int offset, int count) throws IOException {
+		return beginString(totalSizeInBytes, MsgPackCharSink.toChars(chars, offset, count), 0, count);
+	}
+
+	default int continueString(CharSequence chars, int offset, int count) throws IOException {
+		return continueString(MsgPackCharSink.toChars(chars, offset, count), 0, count);
+	}
+
+	default int endString(CharSequence chars, int offset, int count) throws IOException {
+		return endString(MsgPackCharSink.toChars(chars, offset, count), 0, count);
+	}
+
+	private static char[] toChars(CharSequence chars, int offset, int count) {
+		char[] result = new char[count];
+		if(chars instanceof String)
+			((String)chars).getChars(offset, offset + count, result, 0);
+		else {
+			for(int i = 0; i < count; ++i)
+				result[i] = chars.charAt(offset + i);
+		}
+		return result;
+	}
+
 }
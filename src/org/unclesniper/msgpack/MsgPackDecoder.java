@@ -1,29 +1,16 @@
 package org.unclesniper.msgpack;
 
+import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.io.IOException;
 
 public class MsgPackDecoder {
 
-	private enum Structure {
-		ARRAY,
-		MAP
-	}
-
-	private static class Level {
-
-		final Level parent;
+	public static final int DEFAULT_INITIAL_DEPTH = 16;
 
-		final Structure structure;
+	public static final int SCRATCH_BUFFER_SIZE = 4096;
 
-		long remainingLength;
-
-		Level(Level parent, Structure structure, long remainingLength) {
-			this.parent = parent;
-			this.structure = structure;
-			this.remainingLength = remainingLength;
-		}
-
-	}
+	private static final byte[] NO_BYTES = new byte[0];
 
 	private enum State {
 		CLEAN,
@@ -39,10 +26,17 @@ public class MsgPackDecoder {
 		MAP_LENGTH,
 		EXTENSION,
 		EXTENSION_LENGTH,
-		EXTENSION_TYPE
+		EXTENSION_TYPE,
+		SKIP
 	}
 
-	private Level stack;
+	// remaining element count per open array/map, innermost at depth - 1
+	private long[] levelRemaining;
+
+	// bit set iff the level is a map
+	private long[] levelIsMap;
+
+	private int depth;
 
 	private MsgPackByteSink sink;
 
@@ -56,8 +50,59 @@ public class MsgPackDecoder {
 
 	private boolean needsPushDown;
 
+	// window for buffers whose content is not accessible as an array
+	private byte[] scratch;
+
+	// buffer the scratch window was filled from, and its index at scratch[0]
+	private ByteBuffer scratchSource;
+
+	private int scratchSourceOffset;
+
+	private MsgPackByteBufferSink payloadBufferSink;
+
+	private MsgPackBackPressureSink backPressureSink;
+
+	// limits per pushBytes call; 0 means unlimited
+	private int eventBudget;
+
+	private int byteBudget;
+
+	private long timeBudget;
+
+	// what is left of them in the current call
+	private int eventsLeft;
+
+	private int bytesLeft;
+
+	private long deadline;
+
+	private boolean budgetExhausted;
+
+	// payload bytes consumed by the last payloadLength() call
+	private int sliced;
+
+	// top-level values yet to be skipped
+	private int skipRequested;
+
+	// values (including nested ones) left in the subtree being skipped
+	private long skipCount;
+
+	private long skipBytes;
+
+	private int skipFieldSize;
+
+	private int skipFieldKind;
+
 	public MsgPackDecoder(MsgPackByteSink sink) {
+		this(sink, 0);
+	}
+
+	public MsgPackDecoder(MsgPackByteSink sink, int initialDepth) {
 		this.sink = sink;
+		if(initialDepth <= 0)
+			initialDepth = MsgPackDecoder.DEFAULT_INITIAL_DEPTH;
+		levelRemaining = new long[initialDepth];
+		levelIsMap = new long[(initialDepth + 63) >>> 6];
 	}
 
 	public MsgPackByteSink getSink() {
@@ -68,10 +113,211 @@ public class MsgPackDecoder {
 		this.sink = sink;
 	}
 
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getEventBudget() {
+		return eventBudget;
+	}
+
+	public void setEventBudget(int eventBudget) {
+		this.eventBudget = eventBudget > 0 ? eventBudget : 0;
+	}
+
+	public int getByteBudget() {
+		return byteBudget;
+	}
+
+	public void setByteBudget(int byteBudget) {
+		this.byteBudget = byteBudget > 0 ? byteBudget : 0;
+	}
+
+	public long getTimeBudget() {
+		return timeBudget;
+	}
+
+	// in nanoseconds
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget > 0l ? timeBudget : 0l;
+	}
+
+	// whether the last pushBytes call returned early because it ran out of budget
+	public boolean isBudgetExhausted() {
+		return budgetExhausted;
+	}
+
+	private void startCall() {
+		budgetExhausted = false;
+		eventsLeft = eventBudget;
+		bytesLeft = byteBudget;
+		if(timeBudget > 0l)
+			deadline = System.nanoTime() + timeBudget;
+	}
+
+	private void pushLevel(long remainingLength, boolean map) {
+		if(depth == levelRemaining.length) {
+			int newSize = depth * 2;
+			levelRemaining = Arrays.copyOf(levelRemaining, newSize);
+			levelIsMap = Arrays.copyOf(levelIsMap, (newSize + 63) >>> 6);
+		}
+		levelRemaining[depth] = remainingLength;
+		if(map)
+			levelIsMap[depth >>> 6] |= 1l << depth;
+		else
+			levelIsMap[depth >>> 6] &= ~(1l << depth);
+		++depth;
+	}
+
+	public void skipValue() {
+		++skipRequested;
+	}
+
+	public boolean isSkipping() {
+		return skipRequested > 0 || state == State.SKIP;
+	}
+
 	public int pushBytes(byte[] bytes) throws IOException {
 		return pushBytes(bytes, 0, bytes.length);
 	}
 
+	public int pushBytes(ByteBuffer bytes) throws IOException {
+		startCall();
+		return pushBuffer(bytes);
+	}
+
+	private int pushBuffer(ByteBuffer bytes) throws IOException {
+		if(!bytes.hasRemaining()) {
+			// container ends may still be owed to the sink
+			return decode(MsgPackDecoder.NO_BYTES, 0, 0);
+		}
+		if(!bytes.hasArray())
+			return pushScratchBytes(bytes);
+		int start = bytes.position();
+		int consumed = decode(bytes.array(), bytes.arrayOffset() + start, bytes.remaining());
+		bytes.position(start + consumed);
+		return consumed;
+	}
+
+	private int pushScratchBytes(ByteBuffer bytes) throws IOException {
+		if(scratch == null)
+			scratch = new byte[MsgPackDecoder.SCRATCH_BUFFER_SIZE];
+		int start = bytes.position();
+		int remaining = bytes.remaining();
+		int consumed = 0;
+		try {
+			while(consumed < remaining) {
+				int chunk = remaining - consumed;
+				if(chunk > scratch.length)
+					chunk = scratch.length;
+				bytes.position(start + consumed);
+				bytes.get(scratch, 0, chunk);
+				scratchSource = bytes;
+				scratchSourceOffset = start + consumed;
+				int processed;
+				try {
+					processed = decode(scratch, 0, chunk);
+				}
+				finally {
+					scratchSource = null;
+				}
+				consumed += processed;
+				if(processed < chunk || budgetExhausted)
+					break;
+			}
+		}
+		finally {
+			bytes.position(start + consumed);
+		}
+		return consumed;
+	}
+
+	public long pushBytes(ByteBuffer[] buffers) throws IOException {
+		return pushBytes(buffers, 0, buffers.length);
+	}
+
+	public long pushBytes(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		startCall();
+		long consumed = 0l;
+		int end = offset + length;
+		for(int i = offset; i < end; ++i) {
+			ByteBuffer buffer = buffers[i];
+			if(!buffer.hasRemaining() && !needsPushDown)
+				continue;
+			consumed += (long)pushBuffer(buffer);
+			if(buffer.hasRemaining() || budgetExhausted)
+				break;
+		}
+		return consumed;
+	}
+
+	private ByteBuffer slice(byte[] bytes, int offset, int length) {
+		ByteBuffer view;
+		if(scratchSource != null && bytes == scratch) {
+			view = scratchSource.asReadOnlyBuffer();
+			offset += scratchSourceOffset;
+			view.limit(offset + length);
+			view.position(offset);
+		}
+		else
+			view = ByteBuffer.wrap(bytes, offset, length).asReadOnlyBuffer();
+		return view;
+	}
+
+	private boolean offerSlice(State payloadState, byte type, byte[] bytes, int offset, int end, long length)
+			throws IOException {
+		if(payloadBufferSink == null || length == 0l || (long)(end - offset) < length)
+			return false;
+		ByteBuffer payload = slice(bytes, offset, (int)length);
+		switch(payloadState) {
+			case STRING:
+				payloadBufferSink.string(payload);
+				break;
+			case BINARY:
+				payloadBufferSink.binary(payload);
+				break;
+			case EXTENSION:
+				payloadBufferSink.extension(type, payload);
+				break;
+			default:
+				throw new Doom("Not a payload state: " + payloadState.name());
+		}
+		state = State.CLEAN;
+		return true;
+	}
+
+	/* Called once the length of a string, binary or extension payload is known and
+	 * offset points just past its header. Sets sliced to the number of payload bytes
+	 * handed over as a slice; returns whether pushBytes should return.
+	 */
+	private boolean payloadLength(State payloadState, byte type, long length, byte[] bytes, int offset, int end,
+			boolean nonBlocking) throws IOException {
+		sliced = 0;
+		remainingLength = length;
+		if(offerSlice(payloadState, type, bytes, offset, end, length)) {
+			sliced = (int)length;
+			return pushDown(nonBlocking, true);
+		}
+		boolean entered;
+		switch(payloadState) {
+			case STRING:
+				entered = enterString(length);
+				break;
+			case BINARY:
+				entered = enterBinary();
+				break;
+			case EXTENSION:
+				entered = enterExtension(type);
+				break;
+			default:
+				throw new Doom("Not a payload state: " + payloadState.name());
+		}
+		if(entered)
+			return stalled(nonBlocking);
+		state = State.CLEAN;
+		return pushDown(nonBlocking, true);
+	}
+
 	private boolean enterString(long length) throws IOException {
 		if(length == 0l) {
 			sink.emptyString();
@@ -109,7 +355,7 @@ public class MsgPackDecoder {
 			sink.emptyArray();
 			return false;
 		}
-		stack = new Level(stack, Structure.ARRAY, size);
+		pushLevel(size, false);
 		sink.beginArray((int)size);
 		return true;
 	}
@@ -120,49 +366,144 @@ public class MsgPackDecoder {
 			sink.emptyMap();
 			return false;
 		}
-		stack = new Level(stack, Structure.MAP, pairCount * 2l);
+		pushLevel(pairCount * 2l, true);
 		sink.beginMap((int)pairCount);
 		return true;
 	}
 
-	private boolean pushDown(boolean nonBlocking, boolean issued) throws IOException {
-		while(stack != null) {
-			if(stack.remainingLength > 1l) {
-				--stack.remainingLength;
-				return nonBlocking;
+	private void skipLength(int kind, long length) {
+		switch(kind) {
+			case MsgPackFormat.KIND_STRING:
+			case MsgPackFormat.KIND_BINARY:
+				skipBytes = length;
+				break;
+			case MsgPackFormat.KIND_EXTENSION:
+				// payload plus type byte
+				skipBytes = length + 1l;
+				break;
+			case MsgPackFormat.KIND_ARRAY:
+				skipCount += length;
+				break;
+			case MsgPackFormat.KIND_MAP:
+				skipCount += length * 2l;
+				break;
+			default:
+				throw new Doom("Not a length-prefixed kind: " + kind);
+		}
+	}
+
+	// returns the index of the first byte not consumed
+	private int skip(byte[] bytes, int i, int end) throws IOException {
+		while(i < end) {
+			if(skipBytes > 0l) {
+				long available = (long)(end - i);
+				if(available < skipBytes) {
+					skipBytes -= available;
+					return end;
+				}
+				i += (int)skipBytes;
+				skipBytes = 0l;
 			}
-			if(issued && nonBlocking) {
-				needsPushDown = true;
-				return true;
+			else if(skipFieldSize > 0) {
+				accumulator = (accumulator << 8) | ((long)bytes[i++] & 0xFFl);
+				if(--skipFieldSize == 0)
+					skipLength(skipFieldKind, accumulator);
 			}
-			switch(stack.structure) {
-				case ARRAY:
-					stack = stack.parent;
-					sink.endArray();
-					break;
-				case MAP:
-					stack = stack.parent;
-					sink.endMap();
-					break;
-				default:
-					throw new Doom("Unrecognized structure: " + stack.structure.name());
+			else if(skipCount > 0l) {
+				--skipCount;
+				int descriptor = MsgPackFormat.describe(bytes[i++]);
+				if(descriptor == MsgPackFormat.RESERVED)
+					throw new ReservedInitiatorByteUsedException();
+				int kind = MsgPackFormat.kind(descriptor);
+				int size = MsgPackFormat.fieldSize(descriptor);
+				switch(kind) {
+					case MsgPackFormat.KIND_STRING:
+					case MsgPackFormat.KIND_BINARY:
+					case MsgPackFormat.KIND_EXTENSION:
+					case MsgPackFormat.KIND_ARRAY:
+					case MsgPackFormat.KIND_MAP:
+						if(size == 0)
+							skipLength(kind, (long)MsgPackFormat.immediate(descriptor));
+						else if(end - i >= size) {
+							skipLength(kind, MsgPackFormat.getUnsigned(bytes, i, size));
+							i += size;
+						}
+						else {
+							accumulator = 0l;
+							skipFieldKind = kind;
+							skipFieldSize = size;
+						}
+						break;
+					default:
+						skipBytes = (long)size;
+						break;
+				}
+			}
+			else
+				break;
+		}
+		return i;
+	}
+
+	/* Called exactly once after each event; returns whether pushBytes should
+	 * hand control back. Non-blocking sinks get it after every event, unless
+	 * they can report back-pressure.
+	 */
+	private boolean stalled(boolean nonBlocking) {
+		if((eventBudget > 0 && --eventsLeft <= 0) || (timeBudget > 0l && System.nanoTime() - deadline >= 0l)) {
+			budgetExhausted = true;
+			return true;
+		}
+		return nonBlocking && (backPressureSink == null || backPressureSink.isStalled());
+	}
+
+	// issued: an event has just been sent and not been passed to stalled() yet
+	private boolean pushDown(boolean nonBlocking, boolean issued) throws IOException {
+		while(depth > 0) {
+			int top = depth - 1;
+			if(levelRemaining[top] > 1l) {
+				--levelRemaining[top];
+				return issued && stalled(nonBlocking);
 			}
-			if(nonBlocking) {
-				needsPushDown = stack != null;
+			if(issued && stalled(nonBlocking)) {
+				needsPushDown = true;
 				return true;
 			}
+			depth = top;
+			if((levelIsMap[top >>> 6] & (1l << top)) != 0l)
+				sink.endMap();
+			else
+				sink.endArray();
+			issued = true;
 		}
-		return nonBlocking;
+		return issued && stalled(nonBlocking);
+	}
+
+	// container ends that are due, but have not been sent to a stalled sink yet
+	public boolean hasPendingEvents() {
+		return needsPushDown;
 	}
 
 	public int pushBytes(byte[] bytes, int offset, int length) throws IOException {
+		startCall();
+		return decode(bytes, offset, length);
+	}
+
+	private int decode(byte[] bytes, int offset, int length) throws IOException {
+		boolean capped = byteBudget > 0 && length > bytesLeft;
+		if(capped)
+			length = bytesLeft;
 		boolean nonBlocking = !sink.isBlockingSink();
+		payloadBufferSink = sink instanceof MsgPackByteBufferSink
+				&& ((MsgPackByteBufferSink)sink).acceptsPayloadBuffers() ? (MsgPackByteBufferSink)sink : null;
+		backPressureSink = sink instanceof MsgPackBackPressureSink ? (MsgPackBackPressureSink)sink : null;
 		if(needsPushDown) {
 			needsPushDown = false;
 			if(pushDown(nonBlocking, false))
 				return 0;
 		}
-		int chunk, written;
+		int chunk, written, descriptor, fieldSize;
+		boolean stop;
 		int end = offset + length;
 		int i = offset;
 	  perByte:
@@ -170,236 +511,148 @@ public class MsgPackDecoder {
 			byte b = bytes[i];
 			switch(state) {
 				case CLEAN:
-					if(b >= 0) {
-						// positive fixint
-						sink.integer((long)b, true);
-						if(pushDown(nonBlocking, true))
+					if(skipRequested > 0) {
+						--skipRequested;
+						skipCount = 1l;
+						state = State.SKIP;
+						// revisit this byte in SKIP state
+						--i;
+						break;
+					}
+					descriptor = MsgPackFormat.describe(b);
+					if(descriptor == MsgPackFormat.RESERVED)
+						throw new ReservedInitiatorByteUsedException();
+					fieldSize = MsgPackFormat.fieldSize(descriptor);
+					if(fieldSize == 0) {
+						// everything is in the initiator
+						switch(MsgPackFormat.kind(descriptor)) {
+							case MsgPackFormat.KIND_NIL:
+								sink.nil();
+								stop = pushDown(nonBlocking, true);
+								break;
+							case MsgPackFormat.KIND_BOOLEAN:
+								sink.bool(MsgPackFormat.immediate(descriptor) != 0);
+								stop = pushDown(nonBlocking, true);
+								break;
+							case MsgPackFormat.KIND_INTEGER:
+								sink.integer((long)MsgPackFormat.immediate(descriptor), true);
+								stop = pushDown(nonBlocking, true);
+								break;
+							case MsgPackFormat.KIND_STRING:
+								stop = payloadLength(State.STRING, (byte)0, (long)MsgPackFormat.immediate(descriptor),
+										bytes, i + 1, end, nonBlocking);
+								i += sliced;
+								break;
+							case MsgPackFormat.KIND_ARRAY:
+								stop = enterArray((long)MsgPackFormat.immediate(descriptor))
+										? stalled(nonBlocking) : pushDown(nonBlocking, true);
+								break;
+							case MsgPackFormat.KIND_MAP:
+								stop = enterMap((long)MsgPackFormat.immediate(descriptor))
+										? stalled(nonBlocking) : pushDown(nonBlocking, true);
+								break;
+							case MsgPackFormat.KIND_EXTENSION:
+								// fixext
+								remainingLength = (long)MsgPackFormat.immediate(descriptor);
+								state = State.EXTENSION_TYPE;
+								stop = false;
+								break;
+							default:
+								throw new Doom("Unrecognized kind: " + MsgPackFormat.kind(descriptor));
+						}
+						if(stop)
 							break perByte;
 						break;
 					}
-					switch(b & 0xE0) {
-						case 0x80:
-							// 100xxxxx => fixmap, fixarray
-							if((b & 0x10) == 0) {
-								// fixmap
-								enterMap((long)(b & 0xF));
-							}
-							else {
-								// fixarray
-								enterArray((long)(b & 0xF));
-							}
-							if(nonBlocking)
-								break perByte;
-							break;
-						case 0xA0:
-							// 101xxxxx => fixstr
-							if(enterString((long)(b & 0x1F)) ? nonBlocking : pushDown(nonBlocking, true))
-								break perByte;
-							break;
-						case 0xC0:
-							// 110xxxxx => nil, false, true, bin 8, bin 16, bin 32, ext 8, ext 16, ext 32,
-							//             float 32, float 64, uint 8, uint 16, uint 32, uint 64,
-							//             int 8, int 16, int 32, int 64, fixext 1, fixext 2, fixext 4,
-							//             fixext 8, fixext 16, str 8, str 16, str 32, array 16, array 32,
-							//             map 16, map 32
-							switch(b & 0xFF) {
-								case 0xC0:
-									// nil
-									sink.nil();
-									if(pushDown(nonBlocking, true))
-										break perByte;
-									break;
-								case 0xC1:
-									// (never used)
-									throw new ReservedInitiatorByteUsedException();
-								case 0xC2:
-									// false
-									sink.bool(false);
-									if(pushDown(nonBlocking, true))
-										break perByte;
-									break;
-								case 0xC3:
-									// true
-									sink.bool(true);
-									if(pushDown(nonBlocking, true))
-										break perByte;
-									break;
-								case 0xC4:
-									// bin 8
-									accumulator = 0l;
-									remainingLength = 1l;
-									state = State.BINARY_LENGTH;
-									break;
-								case 0xC5:
-									// bin 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.BINARY_LENGTH;
-									break;
-								case 0xC6:
-									// bin 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.BINARY_LENGTH;
-									break;
-								case 0xC7:
-									// ext 8
-									accumulator = 0l;
-									remainingLength = 1l;
-									state = State.EXTENSION_LENGTH;
-									break;
-								case 0xC8:
-									// ext 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.EXTENSION_LENGTH;
-									break;
-								case 0xC9:
-									// ext 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.EXTENSION_LENGTH;
-									break;
-								case 0xCA:
-									// float 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.FLOAT;
-									break;
-								case 0xCB:
-									// float 64
-									accumulator = 0l;
-									remainingLength = 8l;
-									state = State.DOUBLE;
-									break;
-								case 0xCC:
-									// uint 8
-									accumulator = 0l;
-									remainingLength = 1l;
-									state = State.UINT;
-									break;
-								case 0xCD:
-									// uint 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.UINT;
-									break;
-								case 0xCE:
-									// uint 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.UINT;
-									break;
-								case 0xCF:
-									// uint 64
-									accumulator = 0l;
-									remainingLength = 8l;
-									state = State.UINT;
-									break;
-								case 0xD0:
-									// int 8
-									nextByteIsSign = true;
-									remainingLength = 1l;
-									state = State.INT;
-									break;
-								case 0xD1:
-									// int 16
+					if(end - i <= fieldSize) {
+						// field is split across calls: collect it byte by byte
+						accumulator = 0l;
+						remainingLength = (long)fieldSize;
+						switch(MsgPackFormat.kind(descriptor)) {
+							case MsgPackFormat.KIND_INTEGER:
+								if(MsgPackFormat.isSigned(descriptor)) {
 									nextByteIsSign = true;
-									remainingLength = 2l;
 									state = State.INT;
-									break;
-								case 0xD2:
-									// int 32
-									nextByteIsSign = true;
-									remainingLength = 4l;
-									state = State.INT;
-									break;
-								case 0xD3:
-									// int 64
-									nextByteIsSign = true;
-									remainingLength = 8l;
-									state = State.INT;
-									break;
-								case 0xD4:
-									// fixext 1
-									remainingLength = 1l;
-									state = State.EXTENSION_TYPE;
-									break;
-								case 0xD5:
-									// fixext 2
-									remainingLength = 2l;
-									state = State.EXTENSION_TYPE;
-									break;
-								case 0xD6:
-									// fixext 4
-									remainingLength = 4l;
-									state = State.EXTENSION_TYPE;
-									break;
-								case 0xD7:
-									// fixext 8
-									remainingLength = 8l;
-									state = State.EXTENSION_TYPE;
-									break;
-								case 0xD8:
-									// fixext 16
-									remainingLength = 16l;
-									state = State.EXTENSION_TYPE;
-									break;
-								case 0xD9:
-									// str 8
-									accumulator = 0l;
-									remainingLength = 1l;
-									state = State.STRING_LENGTH;
-									break;
-								case 0xDA:
-									// str 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.STRING_LENGTH;
-									break;
-								case 0xDB:
-									// str 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.STRING_LENGTH;
-									break;
-								case 0xDC:
-									// array 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.ARRAY_LENGTH;
-									break;
-								case 0xDD:
-									// array 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.ARRAY_LENGTH;
-									break;
-								case 0xDE:
-									// map 16
-									accumulator = 0l;
-									remainingLength = 2l;
-									state = State.MAP_LENGTH;
-									break;
-								case 0xDF:
-									// map 32
-									accumulator = 0l;
-									remainingLength = 4l;
-									state = State.MAP_LENGTH;
-									break;
-								default:
-									throw new Doom("Bit twiddling error");
-							}
+								}
+								else
+									state = State.UINT;
+								break;
+							case MsgPackFormat.KIND_FLOAT:
+								state = fieldSize == 4 ? State.FLOAT : State.DOUBLE;
+								break;
+							case MsgPackFormat.KIND_STRING:
+								state = State.STRING_LENGTH;
+								break;
+							case MsgPackFormat.KIND_BINARY:
+								state = State.BINARY_LENGTH;
+								break;
+							case MsgPackFormat.KIND_EXTENSION:
+								state = State.EXTENSION_LENGTH;
+								break;
+							case MsgPackFormat.KIND_ARRAY:
+								state = State.ARRAY_LENGTH;
+								break;
+							case MsgPackFormat.KIND_MAP:
+								state = State.MAP_LENGTH;
+								break;
+							default:
+								throw new Doom("Unrecognized kind: " + MsgPackFormat.kind(descriptor));
+						}
+						break;
+					}
+					// whole field is at hand
+					switch(MsgPackFormat.kind(descriptor)) {
+						case MsgPackFormat.KIND_INTEGER:
+							if(MsgPackFormat.isSigned(descriptor))
+								sink.integer(MsgPackFormat.getSigned(bytes, i + 1, fieldSize), true);
+							else
+								sink.integer(MsgPackFormat.getUnsigned(bytes, i + 1, fieldSize), false);
+							i += fieldSize;
+							stop = pushDown(nonBlocking, true);
+							break;
+						case MsgPackFormat.KIND_FLOAT:
+							if(fieldSize == 4)
+								sink.fraction(Float.intBitsToFloat(MsgPackFormat.getInt(bytes, i + 1)));
+							else
+								sink.fraction(Double.longBitsToDouble(MsgPackFormat.getLong(bytes, i + 1)));
+							i += fieldSize;
+							stop = pushDown(nonBlocking, true);
+							break;
+						case MsgPackFormat.KIND_STRING:
+							i += fieldSize;
+							stop = payloadLength(State.STRING, (byte)0,
+									MsgPackFormat.getUnsigned(bytes, i + 1 - fieldSize, fieldSize),
+									bytes, i + 1, end, nonBlocking);
+							i += sliced;
+							break;
+						case MsgPackFormat.KIND_BINARY:
+							i += fieldSize;
+							stop = payloadLength(State.BINARY, (byte)0,
+									MsgPackFormat.getUnsigned(bytes, i + 1 - fieldSize, fieldSize),
+									bytes, i + 1, end, nonBlocking);
+							i += sliced;
 							break;
-						case 0xE0:
-							// 111xxxxx => negative fixint
-							sink.integer((long)b, true);
-							if(pushDown(nonBlocking, true))
-								break perByte;
+						case MsgPackFormat.KIND_EXTENSION:
+							remainingLength = MsgPackFormat.getUnsigned(bytes, i + 1, fieldSize);
+							i += fieldSize;
+							state = State.EXTENSION_TYPE;
+							stop = false;
+							break;
+						case MsgPackFormat.KIND_ARRAY:
+							stop = enterArray(MsgPackFormat.getUnsigned(bytes, i + 1, fieldSize))
+									? stalled(nonBlocking) : pushDown(nonBlocking, true);
+							i += fieldSize;
+							break;
+						case MsgPackFormat.KIND_MAP:
+							stop = enterMap(MsgPackFormat.getUnsigned(bytes, i + 1, fieldSize))
+									? stalled(nonBlocking) : pushDown(nonBlocking, true);
+							i += fieldSize;
 							break;
 						default:
-							throw new Doom("Bit twiddling error");
+							throw new Doom("Unrecognized kind: " + MsgPackFormat.kind(descriptor));
 					}
+					if(stop)
+						break perByte;
 					break;
 				case INT:
 					if(nextByteIsSign) {
@@ -426,31 +679,19 @@ public class MsgPackDecoder {
 				case STRING_LENGTH:
 					accumulator = (accumulator << 8) | ((long)b & 0xFFl);
 					if(--remainingLength == 0l) {
-						remainingLength = accumulator;
-						if(enterString(accumulator)) {
-							if(nonBlocking)
-								break perByte;
-						}
-						else {
-							state = State.CLEAN;
-							if(pushDown(nonBlocking, true))
-								break perByte;
-						}
+						stop = payloadLength(State.STRING, (byte)0, accumulator, bytes, i + 1, end, nonBlocking);
+						i += sliced;
+						if(stop)
+							break perByte;
 					}
 					break;
 				case BINARY_LENGTH:
 					accumulator = (accumulator << 8) | ((long)b & 0xFFl);
 					if(--remainingLength == 0l) {
-						remainingLength = accumulator;
-						if(enterBinary()) {
-							if(nonBlocking)
-								break perByte;
-						}
-						else {
-							state = State.CLEAN;
-							if(pushDown(nonBlocking, true))
-								break perByte;
-						}
+						stop = payloadLength(State.BINARY, (byte)0, accumulator, bytes, i + 1, end, nonBlocking);
+						i += sliced;
+						if(stop)
+							break perByte;
 					}
 					break;
 				case EXTENSION_LENGTH:
@@ -461,27 +702,22 @@ public class MsgPackDecoder {
 					}
 					break;
 				case EXTENSION_TYPE:
-					if(enterExtension(b)) {
-						if(nonBlocking)
-							break perByte;
-					}
-					else {
-						state = State.CLEAN;
-						if(pushDown(nonBlocking, true))
-							break perByte;
-					}
+					stop = payloadLength(State.EXTENSION, b, remainingLength, bytes, i + 1, end, nonBlocking);
+					i += sliced;
+					if(stop)
+						break perByte;
 					break;
 				case ARRAY_LENGTH:
 					accumulator = (accumulator << 8) | ((long)b & 0xFFl);
 					if(--remainingLength == 0l) {
-						if(enterArray(accumulator) ? nonBlocking : pushDown(nonBlocking, true))
+						if(enterArray(accumulator) ? stalled(nonBlocking) : pushDown(nonBlocking, true))
 							break perByte;
 					}
 					break;
 				case MAP_LENGTH:
 					accumulator = (accumulator << 8) | ((long)b & 0xFFl);
 					if(--remainingLength == 0l) {
-						if(enterMap(accumulator) ? nonBlocking : pushDown(nonBlocking, true))
+						if(enterMap(accumulator) ? stalled(nonBlocking) : pushDown(nonBlocking, true))
 							break perByte;
 					}
 					break;
@@ -505,34 +741,56 @@ public class MsgPackDecoder {
 					break;
 				case STRING:
 				case BINARY:
+				case EXTENSION:
 					chunk = end - i;
 					if((long)chunk >= remainingLength) {
 						chunk = (int)remainingLength;
 						if(state == State.STRING)
 							written = sink.endString(bytes, i, chunk);
-						else
+						else if(state == State.BINARY)
 							written = sink.endBinary(bytes, i, chunk);
+						else
+							written = sink.endExtension(bytes, i, chunk);
 					}
 					else {
 						if(state == State.STRING)
 							written = sink.continueString(bytes, i, chunk);
-						else
+						else if(state == State.BINARY)
 							written = sink.continueBinary(bytes, i, chunk);
+						else
+							written = sink.continueExtension(bytes, i, chunk);
 					}
 					if(written > chunk)
 						throw new TooManyElementsWrittenException(chunk, written);
 					remainingLength -= (long)written;
-					i += chunk - 1;
+					i += written - 1;
 					if(remainingLength == 0l)
 						state = State.CLEAN;
 					if((remainingLength == 0l ? pushDown(nonBlocking, true) : nonBlocking) || i >= end)
 						break perByte;
 					break;
+				case SKIP:
+					chunk = skip(bytes, i, end);
+					if(skipCount > 0l || skipBytes > 0l || skipFieldSize > 0) {
+						i = end;
+						break perByte;
+					}
+					state = State.CLEAN;
+					i = chunk - 1;
+					if(pushDown(nonBlocking, true))
+						break perByte;
+					break;
 				default:
 					throw new Doom("Unrecognized state: " + state.name());
 			}
 		}
-		return (i >= end ? i : i + 1) - offset;
+		int consumed = (i >= end ? i : i + 1) - offset;
+		if(byteBudget > 0) {
+			bytesLeft -= consumed;
+			if(capped && bytesLeft == 0)
+				budgetExhausted = true;
+		}
+		return consumed;
 	}
 
 }
@@ -0,0 +1,9 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+
+public interface MsgPackDeserializer<T> {
+
+	T deserialize(MsgPackReader reader) throws IOException;
+
+}
@@ -0,0 +1,228 @@
+package org.unclesniper.msgpack;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.io.IOException;
+import java.util.Collection;
+import java.lang.reflect.Modifier;
+
+public final class MsgPackDeserializers {
+
+	private static final class EnumDeserializer implements MsgPackDeserializer<Object> {
+
+		private final Enum<?>[] constants;
+
+		private final MsgPackKeyTable names;
+
+		EnumDeserializer(Class<?> type) {
+			constants = (Enum<?>[])type.getEnumConstants();
+			String[] strings = new String[constants.length];
+			for(int i = 0; i < constants.length; ++i)
+				strings[i] = constants[i].name();
+			names = MsgPackKeyTable.ofStrings(strings);
+		}
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			if(MsgPackDeserializers.readNil(reader))
+				return null;
+			int index = reader.readKey(names);
+			if(index < 0)
+				throw new MsgPackWireFormatException("Unknown enum constant for "
+						+ constants.getClass().getComponentType().getName());
+			return constants[index];
+		}
+
+	}
+
+	private static final MsgPackDeserializer<Object> STRING = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : reader.readString();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> LONG = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readLong();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> INTEGER = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readInt();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> SHORT = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readShort();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> BYTE = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readByte();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> CHARACTER = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readChar();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> DOUBLE = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)MsgPackDeserializers.readNumber(reader);
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> FLOAT = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null
+					: (Object)(float)MsgPackDeserializers.readNumber(reader);
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> BOOLEAN = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : (Object)reader.readBoolean();
+		}
+
+	};
+
+	private static final MsgPackDeserializer<Object> BYTES = new MsgPackDeserializer<Object>() {
+
+		@Override
+		public Object deserialize(MsgPackReader reader) throws IOException {
+			return MsgPackDeserializers.readNil(reader) ? null : reader.readBinary();
+		}
+
+	};
+
+	private static final ClassValue<MsgPackDeserializer<Object>> DESERIALIZERS
+			= new ClassValue<MsgPackDeserializer<Object>>() {
+
+		@Override
+		protected MsgPackDeserializer<Object> computeValue(Class<?> type) {
+			return MsgPackDeserializers.create(type);
+		}
+
+	};
+
+	private MsgPackDeserializers() {}
+
+	private static MsgPackDeserializer<Object> create(Class<?> type) {
+		MsgPackDeserializer<Object> builtin = MsgPackDeserializers.builtin(type);
+		if(builtin != null)
+			return builtin;
+		if(type.isEnum())
+			return new MsgPackDeserializers.EnumDeserializer(type);
+		if(!MsgPackDeserializers.isBean(type))
+			throw new IllegalArgumentException("No deserializer for type: " + type.getName());
+		MsgPackDeserializers.checkProperties(type, new HashSet<Class<?>>());
+		return new BeanMsgPackDeserializer(MsgPackBeanInfo.of(type));
+	}
+
+	private static MsgPackDeserializer<Object> builtin(Class<?> type) {
+		if(type == String.class)
+			return MsgPackDeserializers.STRING;
+		if(type == Long.class)
+			return MsgPackDeserializers.LONG;
+		if(type == Integer.class)
+			return MsgPackDeserializers.INTEGER;
+		if(type == Short.class)
+			return MsgPackDeserializers.SHORT;
+		if(type == Byte.class)
+			return MsgPackDeserializers.BYTE;
+		if(type == Character.class)
+			return MsgPackDeserializers.CHARACTER;
+		if(type == Double.class)
+			return MsgPackDeserializers.DOUBLE;
+		if(type == Float.class)
+			return MsgPackDeserializers.FLOAT;
+		if(type == Boolean.class)
+			return MsgPackDeserializers.BOOLEAN;
+		if(type == byte[].class)
+			return MsgPackDeserializers.BYTES;
+		return null;
+	}
+
+	private static boolean isBean(Class<?> type) {
+		return !type.isPrimitive() && !type.isArray() && !type.isInterface()
+				&& !Modifier.isAbstract(type.getModifiers())
+				&& !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type);
+	}
+
+	/* Nested deserializers are only resolved once a property is first read, so
+	 * walk the properties up front; collections, maps and arrays other than
+	 * byte[] are serialized, but cannot be read back into a property.
+	 */
+	private static void checkProperties(Class<?> type, Set<Class<?>> seen) {
+		if(!seen.add(type))
+			return;
+		MsgPackBeanInfo info = MsgPackBeanInfo.of(type);
+		if(info.constructor == null)
+			throw new IllegalArgumentException("No nullary constructor in type: " + type.getName());
+		for(MsgPackBeanInfo.Property property : info.properties) {
+			Class<?> propertyType = property.type;
+			if(!info.record && property.setter == null || propertyType.isPrimitive() || propertyType.isEnum()
+					|| MsgPackDeserializers.builtin(propertyType) != null)
+				continue;
+			if(!MsgPackDeserializers.isBean(propertyType))
+				throw new IllegalArgumentException("Cannot deserialize property " + property.name + " of type "
+						+ propertyType.getName() + " in " + type.getName());
+			MsgPackDeserializers.checkProperties(propertyType, seen);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> MsgPackDeserializer<T> forClass(Class<T> type) {
+		return (MsgPackDeserializer<T>)MsgPackDeserializers.DESERIALIZERS.get(type);
+	}
+
+	public static <T> T deserialize(Class<T> type, MsgPackReader reader) throws IOException {
+		return type.cast(MsgPackDeserializers.DESERIALIZERS.get(type).deserialize(reader));
+	}
+
+	static boolean readNil(MsgPackReader reader) throws IOException {
+		if(reader.nextType() != MsgPackType.NIL)
+			return false;
+		reader.readNil();
+		return true;
+	}
+
+	static double readNumber(MsgPackReader reader) throws IOException {
+		if(reader.nextType() == MsgPackType.INTEGER)
+			return (double)reader.readLong();
+		return reader.readDouble();
+	}
+
+}
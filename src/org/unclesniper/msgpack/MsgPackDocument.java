@@ -0,0 +1,384 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class MsgPackDocument {
+
+	static final class NilNode extends AbstractMsgPackValue {
+
+		static final MsgPackDocument.NilNode INSTANCE = new MsgPackDocument.NilNode();
+
+		private NilNode() {}
+
+		@Override
+		public MsgPackType getType() {
+			return MsgPackType.NIL;
+		}
+
+	}
+
+	static final class BooleanNode extends AbstractMsgPackValue {
+
+		static final MsgPackDocument.BooleanNode TRUE = new MsgPackDocument.BooleanNode(true);
+
+		static final MsgPackDocument.BooleanNode FALSE = new MsgPackDocument.BooleanNode(false);
+
+		private final boolean value;
+
+		private BooleanNode(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		public MsgPackType getType() {
+			return MsgPackType.BOOLEAN;
+		}
+
+		@Override
+		public boolean asBoolean() {
+			return value;
+		}
+
+	}
+
+	static final class IntegerNode extends AbstractMsgPackValue {
+
+		long value;
+
+		boolean signed;
+
+		IntegerNode() {}
+
+		@Override
+		public MsgPackType getType() {
+			return MsgPackType.INTEGER;
+		}
+
+		@Override
+		public long asLong() {
+			return value;
+		}
+
+		@Override
+		public boolean isSignedInteger() {
+			return signed;
+		}
+
+		@Override
+		public double asDouble() {
+			return signed ? (double)value : AbstractMsgPackValue.unsignedToDouble(value);
+		}
+
+	}
+
+	static final class FloatNode extends AbstractMsgPackValue {
+
+		double value;
+
+		FloatNode() {}
+
+		@Override
+		public MsgPackType getType() {
+			return MsgPackType.FLOAT;
+		}
+
+		@Override
+		public double asDouble() {
+			return value;
+		}
+
+	}
+
+	final class PayloadNode extends AbstractMsgPackValue {
+
+		MsgPackType type;
+
+		byte extensionType;
+
+		// into the arena
+		int offset;
+
+		int length;
+
+		PayloadNode() {}
+
+		@Override
+		public MsgPackType getType() {
+			return type;
+		}
+
+		@Override
+		public String asString() throws MsgPackWireFormatException {
+			if(type != MsgPackType.STRING)
+				throw expected(MsgPackType.STRING);
+			return new String(arena, offset, length, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public byte[] asBytes() {
+			return Arrays.copyOfRange(arena, offset, offset + length);
+		}
+
+		@Override
+		public ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(arena, offset, length).slice().asReadOnlyBuffer();
+		}
+
+		@Override
+		public byte getExtensionType() throws MsgPackWireFormatException {
+			if(type != MsgPackType.EXTENSION)
+				throw expected(MsgPackType.EXTENSION);
+			return extensionType;
+		}
+
+		boolean matches(byte[] key) {
+			return type == MsgPackType.STRING && length == key.length
+					&& Arrays.equals(arena, offset, offset + length, key, 0, key.length);
+		}
+
+	}
+
+	final class ContainerNode extends AbstractMsgPackValue {
+
+		boolean map;
+
+		// into the child slab; map keys and values alternate
+		int offset;
+
+		int count;
+
+		ContainerNode() {}
+
+		@Override
+		public MsgPackType getType() {
+			return map ? MsgPackType.MAP : MsgPackType.ARRAY;
+		}
+
+		@Override
+		public int size() {
+			return map ? count / 2 : count;
+		}
+
+		@Override
+		public MsgPackValue get(int index) throws MsgPackWireFormatException {
+			if(map)
+				throw expected(MsgPackType.ARRAY);
+			return children[offset + Objects.checkIndex(index, count)];
+		}
+
+		@Override
+		public MsgPackValue get(String key) throws MsgPackWireFormatException {
+			if(!map)
+				throw expected(MsgPackType.MAP);
+			byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+			int end = offset + count;
+			for(int i = offset; i < end; i += 2) {
+				MsgPackValue candidate = children[i];
+				if(candidate instanceof MsgPackDocument.PayloadNode
+						&& ((MsgPackDocument.PayloadNode)candidate).matches(bytes))
+					return children[i + 1];
+			}
+			return null;
+		}
+
+		@Override
+		public MsgPackValue getKey(int index) throws MsgPackWireFormatException {
+			if(!map)
+				throw expected(MsgPackType.MAP);
+			return children[offset + Objects.checkIndex(index, count / 2) * 2];
+		}
+
+		@Override
+		public MsgPackValue getValue(int index) throws MsgPackWireFormatException {
+			if(!map)
+				throw expected(MsgPackType.MAP);
+			return children[offset + Objects.checkIndex(index, count / 2) * 2 + 1];
+		}
+
+	}
+
+	public static final int DEFAULT_ARENA_SIZE = 4096;
+
+	public static final int MAX_RETAINED_ARENA_SIZE = 1048576;
+
+	public static final int MAX_RETAINED_NODES = 65536;
+
+	private final MsgPackDocumentPool pool;
+
+	private byte[] arena;
+
+	private int arenaFill;
+
+	private MsgPackValue[] children;
+
+	private int childFill;
+
+	/* Node slabs: the first *Count entries are in use by the current
+	 * document, the rest are left over from earlier ones and get reused.
+	 */
+
+	private MsgPackDocument.IntegerNode[] integers;
+
+	private int integerCount;
+
+	private MsgPackDocument.FloatNode[] floats;
+
+	private int floatCount;
+
+	private MsgPackDocument.PayloadNode[] payloads;
+
+	private int payloadCount;
+
+	private MsgPackDocument.ContainerNode[] containers;
+
+	private int containerCount;
+
+	private MsgPackValue root;
+
+	// keeps a second release() from pooling the document twice
+	private boolean released;
+
+	public MsgPackDocument() {
+		this(null);
+	}
+
+	MsgPackDocument(MsgPackDocumentPool pool) {
+		this.pool = pool;
+		arena = new byte[MsgPackDocument.DEFAULT_ARENA_SIZE];
+		children = new MsgPackValue[64];
+		integers = new MsgPackDocument.IntegerNode[16];
+		floats = new MsgPackDocument.FloatNode[16];
+		payloads = new MsgPackDocument.PayloadNode[16];
+		containers = new MsgPackDocument.ContainerNode[16];
+	}
+
+	public MsgPackValue getRoot() {
+		return root;
+	}
+
+	void setRoot(MsgPackValue root) {
+		this.root = root;
+	}
+
+	public int getArenaSize() {
+		return arenaFill;
+	}
+
+	// values obtained from this document must not be used after this; releasing again does nothing
+	public void release() {
+		if(released)
+			return;
+		released = true;
+		clear();
+		if(pool != null)
+			pool.release(this);
+	}
+
+	// called by MsgPackDocumentPool.acquire()
+	void reacquire() {
+		released = false;
+	}
+
+	void clear() {
+		root = null;
+		arenaFill = 0;
+		if(arena.length > MsgPackDocument.MAX_RETAINED_ARENA_SIZE)
+			arena = new byte[MsgPackDocument.DEFAULT_ARENA_SIZE];
+		Arrays.fill(children, 0, childFill, null);
+		childFill = 0;
+		if(children.length > MsgPackDocument.MAX_RETAINED_NODES)
+			children = new MsgPackValue[64];
+		integerCount = floatCount = payloadCount = containerCount = 0;
+		if(integers.length > MsgPackDocument.MAX_RETAINED_NODES)
+			integers = new MsgPackDocument.IntegerNode[16];
+		if(floats.length > MsgPackDocument.MAX_RETAINED_NODES)
+			floats = new MsgPackDocument.FloatNode[16];
+		if(payloads.length > MsgPackDocument.MAX_RETAINED_NODES)
+			payloads = new MsgPackDocument.PayloadNode[16];
+		if(containers.length > MsgPackDocument.MAX_RETAINED_NODES)
+			containers = new MsgPackDocument.ContainerNode[16];
+	}
+
+	MsgPackDocument.IntegerNode newInteger(long value, boolean signed) {
+		if(integerCount == integers.length)
+			integers = Arrays.copyOf(integers, integerCount * 2);
+		MsgPackDocument.IntegerNode node = integers[integerCount];
+		if(node == null)
+			integers[integerCount] = node = new MsgPackDocument.IntegerNode();
+		++integerCount;
+		node.value = value;
+		node.signed = signed;
+		return node;
+	}
+
+	MsgPackDocument.FloatNode newFloat(double value) {
+		if(floatCount == floats.length)
+			floats = Arrays.copyOf(floats, floatCount * 2);
+		MsgPackDocument.FloatNode node = floats[floatCount];
+		if(node == null)
+			floats[floatCount] = node = new MsgPackDocument.FloatNode();
+		++floatCount;
+		node.value = value;
+		return node;
+	}
+
+	MsgPackDocument.PayloadNode newPayload(MsgPackType type, byte extensionType) {
+		if(payloadCount == payloads.length)
+			payloads = Arrays.copyOf(payloads, payloadCount * 2);
+		MsgPackDocument.PayloadNode node = payloads[payloadCount];
+		if(node == null)
+			payloads[payloadCount] = node = new MsgPackDocument.PayloadNode();
+		++payloadCount;
+		node.type = type;
+		node.extensionType = extensionType;
+		node.offset = arenaFill;
+		node.length = 0;
+		return node;
+	}
+
+	// payloads are built one at a time, so the open one always ends at arenaFill
+	void appendPayload(MsgPackDocument.PayloadNode node, byte[] bytes, int offset, int count) {
+		reserveArena(count);
+		System.arraycopy(bytes, offset, arena, arenaFill, count);
+		arenaFill += count;
+		node.length += count;
+	}
+
+	void appendPayload(MsgPackDocument.PayloadNode node, ByteBuffer bytes) {
+		int count = bytes.remaining();
+		reserveArena(count);
+		bytes.duplicate().get(arena, arenaFill, count);
+		arenaFill += count;
+		node.length += count;
+	}
+
+	private void reserveArena(int count) {
+		if(arena.length - arenaFill >= count)
+			return;
+		int newSize = arena.length * 2;
+		if(newSize - arenaFill < count)
+			newSize = arenaFill + count;
+		arena = Arrays.copyOf(arena, newSize);
+	}
+
+	MsgPackDocument.ContainerNode newContainer(boolean map, MsgPackValue[] values, int offset, int count) {
+		if(containerCount == containers.length)
+			containers = Arrays.copyOf(containers, containerCount * 2);
+		MsgPackDocument.ContainerNode node = containers[containerCount];
+		if(node == null)
+			containers[containerCount] = node = new MsgPackDocument.ContainerNode();
+		++containerCount;
+		if(children.length - childFill < count)
+			children = Arrays.copyOf(children, Math.max(children.length * 2, childFill + count));
+		System.arraycopy(values, offset, children, childFill, count);
+		node.map = map;
+		node.offset = childFill;
+		node.count = count;
+		childFill += count;
+		return node;
+	}
+
+}
@@ -0,0 +1,358 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+public class MsgPackDocumentBuilder implements MsgPackByteBufferSink {
+
+	private final MsgPackDocumentPool pool;
+
+	private MsgPackDocument document;
+
+	private MsgPackDocument completed;
+
+	// finished values whose container is still open
+	private MsgPackValue[] values = new MsgPackValue[32];
+
+	private int valueCount;
+
+	// per open container: where its values start on the stack, how many it announced
+	private int[] frameBase = new int[16];
+
+	private int[] frameSize = new int[16];
+
+	private boolean[] frameMap = new boolean[16];
+
+	private int depth;
+
+	private MsgPackDocument.PayloadNode payload;
+
+	private long announcedSize = -1l;
+
+	public MsgPackDocumentBuilder() {
+		this(null);
+	}
+
+	public MsgPackDocumentBuilder(MsgPackDocumentPool pool) {
+		this.pool = pool;
+	}
+
+	public MsgPackDocumentPool getPool() {
+		return pool;
+	}
+
+	public boolean hasDocument() {
+		return completed != null;
+	}
+
+	// hands the finished document over to the caller, who should release() it when done
+	public MsgPackDocument takeDocument() {
+		if(completed == null)
+			throw new IllegalStateException("No complete document has been built");
+		MsgPackDocument result = completed;
+		completed = null;
+		return result;
+	}
+
+	public void reset() {
+		if(document != null)
+			document.release();
+		document = null;
+		Arrays.fill(values, 0, valueCount, null);
+		valueCount = 0;
+		depth = 0;
+		payload = null;
+		announcedSize = -1l;
+	}
+
+	@Override
+	public boolean isBlockingSink() {
+		return true;
+	}
+
+	@Override
+	public boolean acceptsPayloadBuffers() {
+		// payloads are copied into the arena either way; a slice would only add the view
+		return false;
+	}
+
+	private MsgPackDocument startValue() {
+		if(announcedSize >= 0l)
+			throw new IllegalStateException("Out-of-sequence event received: Still within payload");
+		if(document == null) {
+			if(completed != null)
+				throw new IllegalStateException("Out-of-sequence event received: "
+						+ "Previous document has not been taken yet");
+			document = pool == null ? new MsgPackDocument() : pool.acquire();
+		}
+		return document;
+	}
+
+	private void add(MsgPackValue value) {
+		if(depth == 0) {
+			document.setRoot(value);
+			completed = document;
+			document = null;
+			return;
+		}
+		if(valueCount - frameBase[depth - 1] >= frameSize[depth - 1])
+			throw new IllegalStateException("Out-of-sequence event received: Container is already full");
+		if(valueCount == values.length)
+			values = Arrays.copyOf(values, valueCount * 2);
+		values[valueCount++] = value;
+	}
+
+	private void beginContainer(int size, boolean map) {
+		startValue();
+		if(depth > 0 && valueCount - frameBase[depth - 1] >= frameSize[depth - 1])
+			throw new IllegalStateException("Out-of-sequence event received: Container is already full");
+		if(depth == frameBase.length) {
+			frameBase = Arrays.copyOf(frameBase, depth * 2);
+			frameSize = Arrays.copyOf(frameSize, depth * 2);
+			frameMap = Arrays.copyOf(frameMap, depth * 2);
+		}
+		frameBase[depth] = valueCount;
+		frameSize[depth] = map ? size * 2 : size;
+		frameMap[depth] = map;
+		++depth;
+	}
+
+	private void endContainer(boolean map) throws SequenceSizeMismatchException {
+		if(depth == 0 || frameMap[depth - 1] != map)
+			throw new IllegalStateException("Out-of-sequence event received: Not within "
+					+ (map ? "map" : "array") + " structure");
+		--depth;
+		int base = frameBase[depth];
+		int count = valueCount - base;
+		if(count < frameSize[depth])
+			throw new SequenceSizeMismatchException((long)frameSize[depth], (long)count, false);
+		MsgPackValue container = document.newContainer(map, values, base, count);
+		Arrays.fill(values, base, valueCount, null);
+		valueCount = base;
+		add(container);
+	}
+
+	private void beginPayload(MsgPackType type, byte extensionType, int totalSize) {
+		payload = startValue().newPayload(type, extensionType);
+		announcedSize = (long)totalSize & 0xFFFFFFFFl;
+	}
+
+	private int appendPayload(byte[] bytes, int offset, int count) throws SequenceSizeMismatchException {
+		if(announcedSize < 0l)
+			throw new IllegalStateException("Out-of-sequence event received: Not within payload");
+		if((long)payload.length + (long)count > announcedSize)
+			throw new SequenceSizeMismatchException(announcedSize, (long)payload.length + (long)count, true);
+		document.appendPayload(payload, bytes, offset, count);
+		return count;
+	}
+
+	private void endPayload(MsgPackType type) throws SequenceSizeMismatchException {
+		if(announcedSize < 0l || payload.type != type)
+			throw new IllegalStateException("Out-of-sequence event received: Not within "
+					+ type.name().toLowerCase() + " structure");
+		if((long)payload.length < announcedSize)
+			throw new SequenceSizeMismatchException(announcedSize, (long)payload.length, false);
+		announcedSize = -1l;
+		MsgPackValue value = payload;
+		payload = null;
+		add(value);
+	}
+
+	private void wholePayload(MsgPackType type, byte extensionType, ByteBuffer bytes) {
+		MsgPackDocument.PayloadNode node = startValue().newPayload(type, extensionType);
+		document.appendPayload(node, bytes);
+		add(node);
+	}
+
+	private int wholePayload(MsgPackType type, byte extensionType, byte[] bytes, int offset, int count) {
+		MsgPackDocument.PayloadNode node = startValue().newPayload(type, extensionType);
+		document.appendPayload(node, bytes, offset, count);
+		add(node);
+		return count;
+	}
+
+	@Override
+	public void nil() {
+		startValue();
+		add(MsgPackDocument.NilNode.INSTANCE);
+	}
+
+	@Override
+	public void bool(boolean value) {
+		startValue();
+		add(value ? MsgPackDocument.BooleanNode.TRUE : MsgPackDocument.BooleanNode.FALSE);
+	}
+
+	@Override
+	public void integer(long value, boolean signed) {
+		add(startValue().newInteger(value, signed));
+	}
+
+	@Override
+	public void fraction(double value) {
+		add(startValue().newFloat(value));
+	}
+
+	@Override
+	public void emptyString() {
+		add(startValue().newPayload(MsgPackType.STRING, (byte)0));
+	}
+
+	@Override
+	public int string(byte[] bytes, int offset, int count) {
+		return wholePayload(MsgPackType.STRING, (byte)0, bytes, offset, count);
+	}
+
+	@Override
+	public void string(ByteBuffer bytes) {
+		wholePayload(MsgPackType.STRING, (byte)0, bytes);
+	}
+
+	@Override
+	public void beginString(int totalSizeInBytes) {
+		beginPayload(MsgPackType.STRING, (byte)0, totalSizeInBytes);
+	}
+
+	@Override
+	public int beginString(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		beginString(totalSize);
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public int continueString(byte[] bytes, int offset, int count) throws IOException {
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public void endString() throws IOException {
+		endPayload(MsgPackType.STRING);
+	}
+
+	@Override
+	public int endString(byte[] bytes, int offset, int count) throws IOException {
+		appendPayload(bytes, offset, count);
+		endString();
+		return count;
+	}
+
+	@Override
+	public void emptyBinary() {
+		add(startValue().newPayload(MsgPackType.BINARY, (byte)0));
+	}
+
+	@Override
+	public int binary(byte[] bytes, int offset, int count) {
+		return wholePayload(MsgPackType.BINARY, (byte)0, bytes, offset, count);
+	}
+
+	@Override
+	public void binary(ByteBuffer bytes) {
+		wholePayload(MsgPackType.BINARY, (byte)0, bytes);
+	}
+
+	@Override
+	public void beginBinary(int totalSize) {
+		beginPayload(MsgPackType.BINARY, (byte)0, totalSize);
+	}
+
+	@Override
+	public int beginBinary(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		beginBinary(totalSize);
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public int continueBinary(byte[] bytes, int offset, int count) throws IOException {
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public void endBinary() throws IOException {
+		endPayload(MsgPackType.BINARY);
+	}
+
+	@Override
+	public int endBinary(byte[] bytes, int offset, int count) throws IOException {
+		appendPayload(bytes, offset, count);
+		endBinary();
+		return count;
+	}
+
+	@Override
+	public void emptyArray() throws IOException {
+		beginContainer(0, false);
+		endContainer(false);
+	}
+
+	@Override
+	public void beginArray(int size) {
+		beginContainer(size, false);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		endContainer(false);
+	}
+
+	@Override
+	public void emptyMap() throws IOException {
+		beginContainer(0, true);
+		endContainer(true);
+	}
+
+	@Override
+	public void beginMap(int pairCount) {
+		beginContainer(pairCount, true);
+	}
+
+	@Override
+	public void endMap() throws IOException {
+		endContainer(true);
+	}
+
+	@Override
+	public void emptyExtension(byte type) {
+		add(startValue().newPayload(MsgPackType.EXTENSION, type));
+	}
+
+	@Override
+	public int extension(byte type, byte[] bytes, int offset, int count) {
+		return wholePayload(MsgPackType.EXTENSION, type, bytes, offset, count);
+	}
+
+	@Override
+	public void extension(byte type, ByteBuffer bytes) {
+		wholePayload(MsgPackType.EXTENSION, type, bytes);
+	}
+
+	@Override
+	public void beginExtension(byte type, int totalSize) {
+		beginPayload(MsgPackType.EXTENSION, type, totalSize);
+	}
+
+	@Override
+	public int beginExtension(byte type, int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		beginExtension(type, totalSize);
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public int continueExtension(byte[] bytes, int offset, int count) throws IOException {
+		return appendPayload(bytes, offset, count);
+	}
+
+	@Override
+	public void endExtension() throws IOException {
+		endPayload(MsgPackType.EXTENSION);
+	}
+
+	@Override
+	public int endExtension(byte[] bytes, int offset, int count) throws IOException {
+		appendPayload(bytes, offset, count);
+		endExtension();
+		return count;
+	}
+
+}
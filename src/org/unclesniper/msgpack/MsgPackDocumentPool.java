@@ -0,0 +1,49 @@
+package org.unclesniper.msgpack;
+
+import java.util.ArrayDeque;
+
+public class MsgPackDocumentPool {
+
+	public static final int DEFAULT_MAX_POOLED_DOCUMENTS = 64;
+
+	private final ArrayDeque<MsgPackDocument> documents = new ArrayDeque<MsgPackDocument>();
+
+	private final int maxPooledDocuments;
+
+	public MsgPackDocumentPool() {
+		this(0);
+	}
+
+	public MsgPackDocumentPool(int maxPooledDocuments) {
+		this.maxPooledDocuments = maxPooledDocuments > 0
+				? maxPooledDocuments : MsgPackDocumentPool.DEFAULT_MAX_POOLED_DOCUMENTS;
+	}
+
+	public int getMaxPooledDocuments() {
+		return maxPooledDocuments;
+	}
+
+	public synchronized int getPooledDocumentCount() {
+		return documents.size();
+	}
+
+	public MsgPackDocument acquire() {
+		MsgPackDocument document;
+		synchronized(this) {
+			document = documents.pollFirst();
+		}
+		if(document == null)
+			return new MsgPackDocument(this);
+		document.reacquire();
+		return document;
+	}
+
+	// called by MsgPackDocument.release(), which has already cleared the document
+	void release(MsgPackDocument document) {
+		synchronized(this) {
+			if(documents.size() < maxPooledDocuments)
+				documents.addFirst(document);
+		}
+	}
+
+}
@@ -1,9 +1,11 @@
 package org.unclesniper.msgpack;
 
+import java.util.Arrays;
+import java.io.Flushable;
 import java.nio.ByteBuffer;
 import java.io.IOException;
 
-public class MsgPackEncoder implements MsgPackByteSink {
+public class MsgPackEncoder implements MsgPackByteSink, MsgPackBackPressureSink {
 
 	private enum Structure {
 		STRING,
@@ -13,35 +15,61 @@ public class MsgPackEncoder implements MsgPackByteSink {
 		EXTENSION
 	}
 
-	private static class Level {
+	private static final int BUFFER_SIZE = 32;  // >= MIN_DIRECT_BUFFER_SIZE
 
-		final Level parent;
+	public static final int MIN_DIRECT_BUFFER_SIZE = 9;
 
-		final Structure structure;
+	public static final int DEFAULT_INITIAL_DEPTH = 16;
 
-		final long announcedSize;
+	private final byte[] stagingBuffer = new byte[MsgPackEncoder.BUFFER_SIZE];
 
-		long receivedSize;
+	private byte[] buffer;
 
-		Level(Level parent, Structure structure, long announcedSize, long receivedSize) {
-			this.parent = parent;
-			this.structure = structure;
-			this.announcedSize = announcedSize;
-			this.receivedSize = receivedSize;
-		}
+	private int bufferStart;
 
-	}
+	private int bufferLimit;
 
-	private static final int BUFFER_SIZE = 32;  // >= 9
+	private int position;
 
-	private final byte[] buffer = new byte[MsgPackEncoder.BUFFER_SIZE];
+	private boolean direct;
 
 	private MsgPackWriter writer;
 
-	private Level stack;
+	// open structures, innermost at depth - 1
+	private Structure[] levelStructure;
+
+	private long[] levelAnnouncedSize;
+
+	private long[] levelReceivedSize;
+
+	private int depth;
 
 	public MsgPackEncoder(MsgPackWriter writer) {
 		this.writer = writer;
+		initLevels(0);
+		useStagingBuffer();
+	}
+
+	public MsgPackEncoder(MsgPackWriter writer, int initialDepth) {
+		this.writer = writer;
+		initLevels(initialDepth);
+		useStagingBuffer();
+	}
+
+	public MsgPackEncoder(MsgPackWriter writer, byte[] output) {
+		this(writer, output, 0, output.length);
+	}
+
+	public MsgPackEncoder(MsgPackWriter writer, byte[] output, int offset, int length) {
+		this.writer = writer;
+		initLevels(0);
+		useDirectBuffer(output, offset, length);
+	}
+
+	public MsgPackEncoder(MsgPackWriter writer, ByteBuffer output) {
+		this.writer = writer;
+		initLevels(0);
+		useDirectBuffer(output);
 	}
 
 	public MsgPackWriter getWriter() {
@@ -52,11 +80,135 @@ public class MsgPackEncoder implements MsgPackByteSink {
 		this.writer = writer;
 	}
 
+	private void initLevels(int initialDepth) {
+		if(initialDepth <= 0)
+			initialDepth = MsgPackEncoder.DEFAULT_INITIAL_DEPTH;
+		levelStructure = new Structure[initialDepth];
+		levelAnnouncedSize = new long[initialDepth];
+		levelReceivedSize = new long[initialDepth];
+	}
+
+	private void pushLevel(Structure structure, long announcedSize, long receivedSize) {
+		if(depth == levelStructure.length) {
+			int newSize = depth * 2;
+			levelStructure = Arrays.copyOf(levelStructure, newSize);
+			levelAnnouncedSize = Arrays.copyOf(levelAnnouncedSize, newSize);
+			levelReceivedSize = Arrays.copyOf(levelReceivedSize, newSize);
+		}
+		levelStructure[depth] = structure;
+		levelAnnouncedSize[depth] = announcedSize;
+		levelReceivedSize[depth] = receivedSize;
+		++depth;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void reset() {
+		depth = 0;
+		position = bufferStart;
+	}
+
+	public void reset(MsgPackWriter writer) {
+		this.writer = writer;
+		reset();
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public int getBufferedByteCount() {
+		return position - bufferStart;
+	}
+
+	private void requireNothingBuffered() {
+		if(position > bufferStart)
+			throw new IllegalStateException("Cannot switch buffers: " + (position - bufferStart)
+					+ " encoded bytes have not been flushed yet");
+	}
+
+	public void useStagingBuffer() {
+		requireNothingBuffered();
+		buffer = stagingBuffer;
+		bufferStart = position = 0;
+		bufferLimit = stagingBuffer.length;
+		direct = false;
+	}
+
+	public void useDirectBuffer(byte[] output, int offset, int length) {
+		if(offset < 0 || length < 0 || offset > output.length - length)
+			throw new IndexOutOfBoundsException("Region [" + offset + ", " + offset + " + " + length
+					+ ") is out of bounds for array of length " + output.length);
+		if(length < MsgPackEncoder.MIN_DIRECT_BUFFER_SIZE)
+			throw new IllegalArgumentException("Direct buffer must hold at least "
+					+ MsgPackEncoder.MIN_DIRECT_BUFFER_SIZE + " bytes, but only " + length + " were given");
+		requireNothingBuffered();
+		buffer = output;
+		bufferStart = position = offset;
+		bufferLimit = offset + length;
+		direct = true;
+	}
+
+	public void useDirectBuffer(ByteBuffer output) {
+		if(!output.hasArray())
+			throw new IllegalArgumentException("Direct encoding requires a writable, array-backed buffer");
+		useDirectBuffer(output.array(), output.arrayOffset() + output.position(), output.remaining());
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		if(writer instanceof Flushable)
+			((Flushable)writer).flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		int count = position - bufferStart;
+		if(count == 0)
+			return;
+		position = bufferStart;
+		writer.writeChunk(buffer, bufferStart, count);
+	}
+
+	private int reserve(int size) throws IOException {
+		if(bufferLimit - position < size)
+			flushBuffer();
+		return position;
+	}
+
+	private void commit(int size) throws IOException {
+		position += size;
+		if(!direct)
+			flushBuffer();
+	}
+
+	private void writePayload(byte[] bytes, int offset, int count) throws IOException {
+		if(direct && count <= bufferLimit - position) {
+			System.arraycopy(bytes, offset, buffer, position, count);
+			position += count;
+			return;
+		}
+		flushBuffer();
+		writer.writeChunk(bytes, offset, count);
+	}
+
 	@Override
 	public boolean isBlockingSink() {
 		return writer.isBlockingWriter();
 	}
 
+	@Override
+	public boolean isStalled() {
+		if(writer instanceof MsgPackBackPressureWriter)
+			return ((MsgPackBackPressureWriter)writer).isStalled();
+		return !writer.isBlockingWriter();
+	}
+
 	private void putShort(int offset, short value) {
 		buffer[offset] = (byte)(value >>> 8);
 		buffer[offset + 1] = (byte)(value & 0xFF);
@@ -71,139 +223,149 @@ public class MsgPackEncoder implements MsgPackByteSink {
 
 	private void putLong(int offset, long value) {
 		buffer[offset] = (byte)(value >>> 56);
-		buffer[offset] = (byte)((value >>> 48) & 0xFFl);
-		buffer[offset] = (byte)((value >>> 40) & 0xFFl);
-		buffer[offset] = (byte)((value >>> 32) & 0xFFl);
-		buffer[offset] = (byte)((value >>> 24) & 0xFFl);
-		buffer[offset] = (byte)((value >>> 16) & 0xFFl);
-		buffer[offset] = (byte)((value >>> 8) & 0xFFl);
-		buffer[offset] = (byte)(value & 0xFFl);
+		buffer[offset + 1] = (byte)((value >>> 48) & 0xFFl);
+		buffer[offset + 2] = (byte)((value >>> 40) & 0xFFl);
+		buffer[offset + 3] = (byte)((value >>> 32) & 0xFFl);
+		buffer[offset + 4] = (byte)((value >>> 24) & 0xFFl);
+		buffer[offset + 5] = (byte)((value >>> 16) & 0xFFl);
+		buffer[offset + 6] = (byte)((value >>> 8) & 0xFFl);
+		buffer[offset + 7] = (byte)(value & 0xFFl);
 	}
 
 	private void requireClean() {
-		if(stack == null)
+		if(depth == 0)
 			return;
-		switch(stack.structure) {
+		Structure structure = levelStructure[depth - 1];
+		switch(structure) {
 			case STRING:
 			case BINARY:
 			case EXTENSION:
 				throw new IllegalStateException("Out-of-sequence event received: Still within "
-						+ stack.structure.name().toLowerCase() + " structure");
+						+ structure.name().toLowerCase() + " structure");
 		}
 	}
 
 	private void requireString() {
-		if(stack == null || stack.structure != Structure.STRING)
+		if(depth == 0 || levelStructure[depth - 1] != Structure.STRING)
 			throw new IllegalStateException("Out-of-sequence event received: Not within string structure");
 	}
 
 	private void requireBinary() {
-		if(stack == null || stack.structure != Structure.BINARY)
+		if(depth == 0 || levelStructure[depth - 1] != Structure.BINARY)
 			throw new IllegalStateException("Out-of-sequence event received: Not within binary structure");
 	}
 
 	private void requireExtension() {
-		if(stack == null || stack.structure != Structure.EXTENSION)
+		if(depth == 0 || levelStructure[depth - 1] != Structure.EXTENSION)
 			throw new IllegalStateException("Out-of-sequence event received: Not within extension structure");
 	}
 
 	private void advanceStructure() throws SequenceSizeMismatchException {
-		if(stack == null)
+		if(depth == 0)
 			return;
-		switch(stack.structure) {
+		int top = depth - 1;
+		switch(levelStructure[top]) {
 			case ARRAY:
 			case MAP:
-				if(++stack.receivedSize > stack.announcedSize)
-					throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, true);
+				if(++levelReceivedSize[top] > levelAnnouncedSize[top])
+					throw new SequenceSizeMismatchException(levelAnnouncedSize[top], levelReceivedSize[top], true);
 				break;
 		}
 	}
 
+	private void popLevel() throws SequenceSizeMismatchException {
+		int top = depth - 1;
+		if(levelReceivedSize[top] < levelAnnouncedSize[top])
+			throw new SequenceSizeMismatchException(levelAnnouncedSize[top], levelReceivedSize[top], false);
+		depth = top;
+	}
+
 	@Override
 	public void nil() throws IOException {
 		requireClean();
-		buffer[0] = (byte)0xC0;
-		writer.writeChunk(buffer, 0, 1);
+		buffer[reserve(1)] = (byte)0xC0;
+		commit(1);
 		advanceStructure();
 	}
 
 	@Override
 	public void bool(boolean value) throws IOException {
 		requireClean();
-		buffer[0] = (byte)(value ? 0xC3 : 0xC2);
-		writer.writeChunk(buffer, 0, 1);
+		buffer[reserve(1)] = (byte)(value ? 0xC3 : 0xC2);
+		commit(1);
 		advanceStructure();
 	}
 
 	@Override
 	public void integer(long value, boolean signed) throws IOException {
 		requireClean();
+		int at = reserve(9);
 		if(signed) {
 			if(value >= 0l && value <= 0x7Fl) {
 				// positive fixint
-				buffer[0] = (byte)value;
-				writer.writeChunk(buffer, 0, 1);
+				buffer[at] = (byte)value;
+				commit(1);
 			}
 			else if(value < 0l && value >= -0x20l) {
 				// negative fixint
-				buffer[0] = (byte)value;
-				writer.writeChunk(buffer, 0, 1);
+				buffer[at] = (byte)value;
+				commit(1);
 			}
 			else if(value >= -0x80l && value < 0x80l) {
 				// int 8
-				buffer[0] = (byte)0xD0;
-				buffer[1] = (byte)value;
-				writer.writeChunk(buffer, 0, 2);
+				buffer[at] = (byte)0xD0;
+				buffer[at + 1] = (byte)value;
+				commit(2);
 			}
 			else if(value >= -0x8000l && value < 0x8000l) {
 				// int 16
-				buffer[0] = (byte)0xD1;
-				putShort(1, (short)value);
-				writer.writeChunk(buffer, 0, 3);
+				buffer[at] = (byte)0xD1;
+				putShort(at + 1, (short)value);
+				commit(3);
 			}
 			else if(value >= -0x800000l && value < 0x800000l) {
 				// int 32
-				buffer[0] = (byte)0xD2;
-				putInt(1, (int)value);
-				writer.writeChunk(buffer, 0, 5);
+				buffer[at] = (byte)0xD2;
+				putInt(at + 1, (int)value);
+				commit(5);
 			}
 			else {
 				// int 64
-				buffer[0] = (byte)0xD3;
-				putLong(1, value);
-				writer.writeChunk(buffer, 0, 9);
+				buffer[at] = (byte)0xD3;
+				putLong(at + 1, value);
+				commit(9);
 			}
 		}
 		else {
 			if(value < 0l) {
 				// uint 64
-				buffer[0] = (byte)0xCF;
-				putLong(1, value);
-				writer.writeChunk(buffer, 0, 9);
+				buffer[at] = (byte)0xCF;
+				putLong(at + 1, value);
+				commit(9);
 			}
 			else if(value <= 0xFFl) {
 				// uint 8
-				buffer[0] = (byte)0xCC;
-				buffer[1] = (byte)value;
-				writer.writeChunk(buffer, 0, 2);
+				buffer[at] = (byte)0xCC;
+				buffer[at + 1] = (byte)value;
+				commit(2);
 			}
 			else if(value <= 0xFFFFl) {
 				// uint 16
-				buffer[0] = (byte)0xCD;
-				putShort(1, (short)value);
-				writer.writeChunk(buffer, 0, 3);
+				buffer[at] = (byte)0xCD;
+				putShort(at + 1, (short)value);
+				commit(3);
 			}
 			else if(value <= 0xFFFFFFFFl) {
 				// uint 32
-				buffer[0] = (byte)0xCE;
-				putInt(1, (int)value);
-				writer.writeChunk(buffer, 0, 5);
+				buffer[at] = (byte)0xCE;
+				putInt(at + 1, (int)value);
+				commit(5);
 			}
 			else {
 				// uint 64
-				buffer[0] = (byte)0xCF;
-				putLong(1, value);
-				writer.writeChunk(buffer, 0, 9);
+				buffer[at] = (byte)0xCF;
+				putLong(at + 1, value);
+				commit(9);
 			}
 		}
 		advanceStructure();
@@ -212,89 +374,65 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void fraction(double value) throws IOException {
 		requireClean();
+		int at = reserve(9);
 		float fvalue = (float)value;
 		if((double)fvalue == value) {
 			// float 32
-			buffer[0] = (byte)0xCA;
-			putInt(1, Float.floatToIntBits(fvalue));
-			writer.writeChunk(buffer, 0, 5);
+			buffer[at] = (byte)0xCA;
+			putInt(at + 1, Float.floatToIntBits(fvalue));
+			commit(5);
 		}
 		else {
 			// float 64
-			buffer[0] = (byte)0xCB;
-			putLong(1, Double.doubleToLongBits(value));
-			writer.writeChunk(buffer, 0, 9);
+			buffer[at] = (byte)0xCB;
+			putLong(at + 1, Double.doubleToLongBits(value));
+			commit(9);
 		}
 		advanceStructure();
 	}
 
+	// The header of hsize bytes has been placed at position, but not yet committed.
 	private int byteseq(int hsize, Structure structure, byte[] bytes, int offset, int count) throws IOException {
 		if(count == 0) {
-			writer.writeChunk(buffer, 0, hsize);
+			commit(hsize);
 			advanceStructure();
 			return 0;
 		}
 		if(writer.isBlockingWriter()) {
-			writer.writeChunk(buffer, 0, hsize);
-			writer.writeChunk(bytes, offset, count);
+			commit(hsize);
+			writePayload(bytes, offset, count);
 			advanceStructure();
 			return count;
 		}
-		int all = hsize + count;
-		if(all >= hsize) {
-			boolean full;
-			int chunk;
-			if(all > buffer.length) {
-				all = buffer.length;
-				chunk = all - hsize;
-				full = false;
-			}
-			else {
-				chunk = count;
-				full = true;
-			}
-			int end = offset + chunk;
-			for(; offset < end; ++offset)
-				buffer[hsize + offset] = bytes[offset];
-			writer.writeChunk(buffer, 0, all);
-			if(full)
-				advanceStructure();
-			else
-				stack = new Level(stack, structure, (long)count, (long)chunk);
-			return chunk;
-		}
-		writer.writeChunk(buffer, 0, hsize);
-		stack = new Level(stack, structure, (long)count, 0l);
-		return 0;
+		int chunk = bufferLimit - position - hsize;
+		boolean full = count <= chunk;
+		if(full)
+			chunk = count;
+		System.arraycopy(bytes, offset, buffer, position + hsize, chunk);
+		commit(hsize + chunk);
+		if(full)
+			advanceStructure();
+		else
+			pushLevel(structure, (long)count, (long)chunk);
+		return chunk;
 	}
 
 	private int beginByteseq(int hsize, Structure structure, long tsize, byte[] bytes, int offset, int count)
 			throws IOException {
 		int written;
 		if(writer.isBlockingWriter()) {
-			writer.writeChunk(buffer, 0, hsize);
-			writer.writeChunk(bytes, offset, count);
+			commit(hsize);
+			writePayload(bytes, offset, count);
 			written = count;
 		}
 		else {
-			int all = hsize + count;
-			if(all >= hsize) {
-				if(all > buffer.length) {
-					all = buffer.length;
-					count = all - hsize;
-				}
-				int end = offset + count;
-				for(; offset < end; ++offset)
-					buffer[hsize + offset] = bytes[offset];
-				writer.writeChunk(buffer, 0, all);
+			written = bufferLimit - position - hsize;
+			if(count < written)
 				written = count;
-			}
-			else {
-				writer.writeChunk(buffer, 0, hsize);
-				written = 0;
-			}
+			System.arraycopy(bytes, offset, buffer, position + hsize, written);
+			commit(hsize + written);
 		}
-		stack = new Level(stack, structure, tsize, (long)written);
+		pushLevel(structure, tsize, (long)written);
 		return written;
 	}
 
@@ -303,25 +441,27 @@ public class MsgPackEncoder implements MsgPackByteSink {
 			count = 0;
 		if(count == 0)
 			return 0;
-		stack.receivedSize += (long)count;
-		if(stack.receivedSize > stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, true);
-		writer.writeChunk(bytes, offset, count);
+		int top = depth - 1;
+		levelReceivedSize[top] += (long)count;
+		if(levelReceivedSize[top] > levelAnnouncedSize[top])
+			throw new SequenceSizeMismatchException(levelAnnouncedSize[top], levelReceivedSize[top], true);
+		writePayload(bytes, offset, count);
 		return count;
 	}
 
 	private int endByteseq(byte[] bytes, int offset, int count) throws IOException {
 		if(count < 0)
 			count = 0;
+		int top = depth - 1;
 		if(count > 0) {
-			stack.receivedSize += (long)count;
-			if(stack.receivedSize > stack.announcedSize)
-				throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, true);
-			writer.writeChunk(bytes, offset, count);
+			levelReceivedSize[top] += (long)count;
+			if(levelReceivedSize[top] > levelAnnouncedSize[top])
+				throw new SequenceSizeMismatchException(levelAnnouncedSize[top], levelReceivedSize[top], true);
+			writePayload(bytes, offset, count);
 		}
-		if(stack.receivedSize < stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		if(levelReceivedSize[top] < levelAnnouncedSize[top])
+			throw new SequenceSizeMismatchException(levelAnnouncedSize[top], levelReceivedSize[top], false);
+		depth = top;
 		advanceStructure();
 		return count;
 	}
@@ -329,29 +469,30 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void emptyString() throws IOException {
 		requireClean();
-		buffer[0] = (byte)0xA0;
-		writer.writeChunk(buffer, 0, 1);
+		buffer[reserve(1)] = (byte)0xA0;
+		commit(1);
 		advanceStructure();
 	}
 
-	private int stringHeader(int totalSizeInBytes) {
+	private int stringHeader(int totalSizeInBytes) throws IOException {
+		int at = reserve(5);
 		long tsize = (long)totalSizeInBytes & 0xFFFFFFFFl;
 		if(tsize < 32l) {
-			buffer[0] = (byte)(0xA0 | totalSizeInBytes);
+			buffer[at] = (byte)(0xA0 | totalSizeInBytes);
 			return 1;
 		}
 		if(tsize < 0x100l) {
-			buffer[0] = (byte)0xD9;
-			buffer[1] = (byte)totalSizeInBytes;
+			buffer[at] = (byte)0xD9;
+			buffer[at + 1] = (byte)totalSizeInBytes;
 			return 2;
 		}
 		if(tsize < 0x10000l) {
-			buffer[0] = (byte)0xDA;
-			putShort(1, (short)totalSizeInBytes);
+			buffer[at] = (byte)0xDA;
+			putShort(at + 1, (short)totalSizeInBytes);
 			return 3;
 		}
-		buffer[0] = (byte)0xDB;
-		putInt(1, totalSizeInBytes);
+		buffer[at] = (byte)0xDB;
+		putInt(at + 1, totalSizeInBytes);
 		return 5;
 	}
 
@@ -366,8 +507,8 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void beginString(int totalSizeInBytes) throws IOException {
 		requireClean();
-		writer.writeChunk(buffer, 0, stringHeader(totalSizeInBytes));
-		stack = new Level(stack, Structure.STRING, (long)totalSizeInBytes & 0xFFFFFFFFl, 0l);
+		commit(stringHeader(totalSizeInBytes));
+		pushLevel(Structure.STRING, (long)totalSizeInBytes & 0xFFFFFFFFl, 0l);
 	}
 
 	@Override
@@ -390,9 +531,7 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void endString() throws IOException {
 		requireString();
-		if(stack.receivedSize < stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		popLevel();
 		advanceStructure();
 	}
 
@@ -405,26 +544,28 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void emptyBinary() throws IOException {
 		requireClean();
-		buffer[0] = (byte)0xC4;
-		buffer[1] = (byte)0;
-		writer.writeChunk(buffer, 0, 2);
+		int at = reserve(2);
+		buffer[at] = (byte)0xC4;
+		buffer[at + 1] = (byte)0;
+		commit(2);
 		advanceStructure();
 	}
 
-	private int binaryHeader(int totalSize) {
+	private int binaryHeader(int totalSize) throws IOException {
+		int at = reserve(5);
 		long tsize = (long)totalSize & 0xFFFFFFFFl;
 		if(tsize < 0x100l) {
-			buffer[0] = (byte)0xC4;
-			buffer[1] = (byte)totalSize;
+			buffer[at] = (byte)0xC4;
+			buffer[at + 1] = (byte)totalSize;
 			return 2;
 		}
 		if(tsize < 0x10000l) {
-			buffer[0] = (byte)0xC5;
-			putShort(1, (short)totalSize);
+			buffer[at] = (byte)0xC5;
+			putShort(at + 1, (short)totalSize);
 			return 3;
 		}
-		buffer[0] = (byte)0xC6;
-		putInt(1, totalSize);
+		buffer[at] = (byte)0xC6;
+		putInt(at + 1, totalSize);
 		return 5;
 	}
 
@@ -439,8 +580,8 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void beginBinary(int totalSize) throws IOException {
 		requireClean();
-		writer.writeChunk(buffer, 0, binaryHeader(totalSize));
-		stack = new Level(stack, Structure.BINARY, (long)totalSize & 0xFFFFFFFFl, 0l);
+		commit(binaryHeader(totalSize));
+		pushLevel(Structure.BINARY, (long)totalSize & 0xFFFFFFFFl, 0l);
 	}
 
 	@Override
@@ -463,9 +604,7 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void endBinary() throws IOException {
 		requireBinary();
-		if(stack.receivedSize < stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		popLevel();
 		advanceStructure();
 	}
 
@@ -478,130 +617,132 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void emptyArray() throws IOException {
 		requireClean();
-		buffer[0] = (byte)0x90;
-		writer.writeChunk(buffer, 0, 1);
+		buffer[reserve(1)] = (byte)0x90;
+		commit(1);
+		advanceStructure();
 	}
 
 	@Override
 	public void beginArray(int size) throws IOException {
 		requireClean();
 		long tsize = (long)size & 0xFFFFFFFFl;
+		int at = reserve(5);
 		if(tsize < 0xFl) {
-			buffer[0] = (byte)(0x90 | size);
-			writer.writeChunk(buffer, 0, 1);
+			buffer[at] = (byte)(0x90 | size);
+			commit(1);
 		}
 		else if(tsize < 0x10000l) {
-			buffer[0] = (byte)0xDC;
-			putShort(1, (short)size);
-			writer.writeChunk(buffer, 0, 3);
+			buffer[at] = (byte)0xDC;
+			putShort(at + 1, (short)size);
+			commit(3);
 		}
 		else {
-			buffer[0] = (byte)0xDD;
-			putInt(1, size);
-			writer.writeChunk(buffer, 0, 5);
+			buffer[at] = (byte)0xDD;
+			putInt(at + 1, size);
+			commit(5);
 		}
-		stack = new Level(stack, Structure.ARRAY, tsize, 0l);
+		pushLevel(Structure.ARRAY, tsize, 0l);
 	}
 
 	@Override
 	public void endArray() throws IOException {
 		requireClean();
-		if(stack == null || stack.structure != Structure.ARRAY)
+		if(depth == 0 || levelStructure[depth - 1] != Structure.ARRAY)
 			throw new IllegalStateException("Out-of-sequence event received: Not within array structure");
-		if(stack.receivedSize != stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		popLevel();
 		advanceStructure();
 	}
 
 	@Override
 	public void emptyMap() throws IOException {
 		requireClean();
-		buffer[0] = (byte)0x80;
-		writer.writeChunk(buffer, 0, 1);
+		buffer[reserve(1)] = (byte)0x80;
+		commit(1);
+		advanceStructure();
 	}
 
 	@Override
 	public void beginMap(int pairCount) throws IOException {
 		requireClean();
 		long pcount = (long)pairCount & 0xFFFFFFFFl;
+		int at = reserve(5);
 		if(pcount < 0xFl) {
-			buffer[0] = (byte)(0x80 | pairCount);
-			writer.writeChunk(buffer, 0, 1);
+			buffer[at] = (byte)(0x80 | pairCount);
+			commit(1);
 		}
 		else if(pcount < 0x10000l) {
-			buffer[0] = (byte)0xDE;
-			putShort(1, (short)pairCount);
-			writer.writeChunk(buffer, 0, 3);
+			buffer[at] = (byte)0xDE;
+			putShort(at + 1, (short)pairCount);
+			commit(3);
 		}
 		else {
-			buffer[0] = (byte)0xDF;
-			putInt(1, pairCount);
-			writer.writeChunk(buffer, 0, 5);
+			buffer[at] = (byte)0xDF;
+			putInt(at + 1, pairCount);
+			commit(5);
 		}
-		stack = new Level(stack, Structure.ARRAY, pcount * 2l, 0l);
+		pushLevel(Structure.MAP, pcount * 2l, 0l);
 	}
 
 	@Override
 	public void endMap() throws IOException {
 		requireClean();
-		if(stack == null || stack.structure != Structure.MAP)
+		if(depth == 0 || levelStructure[depth - 1] != Structure.MAP)
 			throw new IllegalStateException("Out-of-sequence event received: Not within map structure");
-		if(stack.receivedSize != stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		popLevel();
 		advanceStructure();
 	}
 
 	@Override
 	public void emptyExtension(byte type) throws IOException {
 		requireClean();
-		buffer[0] = (byte)0xC7;
-		buffer[1] = (byte)0;
-		buffer[2] = type;
-		writer.writeChunk(buffer, 0, 3);
+		int at = reserve(3);
+		buffer[at] = (byte)0xC7;
+		buffer[at + 1] = (byte)0;
+		buffer[at + 2] = type;
+		commit(3);
 		advanceStructure();
 	}
 
-	private int extensionHeader(byte type, int totalSize) {
+	private int extensionHeader(byte type, int totalSize) throws IOException {
+		int at = reserve(6);
 		switch(totalSize) {
 			case 1:
-				buffer[0] = (byte)0xD4;
+				buffer[at] = (byte)0xD4;
 				break;
 			case 2:
-				buffer[0] = (byte)0xD5;
+				buffer[at] = (byte)0xD5;
 				break;
 			case 4:
-				buffer[0] = (byte)0xD6;
+				buffer[at] = (byte)0xD6;
 				break;
 			case 8:
-				buffer[0] = (byte)0xD7;
+				buffer[at] = (byte)0xD7;
 				break;
 			case 16:
-				buffer[0] = (byte)0xD8;
+				buffer[at] = (byte)0xD8;
 				break;
 			default:
 				{
 					long tsize = (long)totalSize & 0xFFFFFFFFl;
 					if(tsize < 0x100l) {
-						buffer[0] = (byte)0xC7;
-						buffer[1] = (byte)totalSize;
-						buffer[2] = type;
+						buffer[at] = (byte)0xC7;
+						buffer[at + 1] = (byte)totalSize;
+						buffer[at + 2] = type;
 						return 3;
 					}
 					if(tsize < 0x10000l) {
-						buffer[0] = (byte)0xC8;
-						putShort(1, (short)totalSize);
-						buffer[3] = type;
+						buffer[at] = (byte)0xC8;
+						putShort(at + 1, (short)totalSize);
+						buffer[at + 3] = type;
 						return 4;
 					}
-					buffer[0] = (byte)0xC9;
-					putInt(1, totalSize);
-					buffer[5] = type;
+					buffer[at] = (byte)0xC9;
+					putInt(at + 1, totalSize);
+					buffer[at + 5] = type;
 					return 6;
 				}
 		}
-		buffer[1] = type;
+		buffer[at + 1] = type;
 		return 2;
 	}
 
@@ -616,8 +757,8 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void beginExtension(byte type, int totalSize) throws IOException {
 		requireClean();
-		writer.writeChunk(buffer, 0, extensionHeader(type, totalSize));
-		stack = new Level(stack, Structure.EXTENSION, (long)totalSize & 0xFFFFFFFFl, 0l);
+		commit(extensionHeader(type, totalSize));
+		pushLevel(Structure.EXTENSION, (long)totalSize & 0xFFFFFFFFl, 0l);
 	}
 
 	@Override
@@ -640,9 +781,7 @@ public class MsgPackEncoder implements MsgPackByteSink {
 	@Override
 	public void endExtension() throws IOException {
 		requireExtension();
-		if(stack.receivedSize < stack.announcedSize)
-			throw new SequenceSizeMismatchException(stack.announcedSize, stack.receivedSize, false);
-		stack = stack.parent;
+		popLevel();
 		advanceStructure();
 	}
 
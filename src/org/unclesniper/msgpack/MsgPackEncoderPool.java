@@ -0,0 +1,53 @@
+package org.unclesniper.msgpack;
+
+import java.util.ArrayDeque;
+
+public class MsgPackEncoderPool {
+
+	public static final int DEFAULT_MAX_POOLED_ENCODERS = 64;
+
+	private final ArrayDeque<MsgPackEncoder> encoders = new ArrayDeque<MsgPackEncoder>();
+
+	private final int maxPooledEncoders;
+
+	public MsgPackEncoderPool() {
+		this(0);
+	}
+
+	public MsgPackEncoderPool(int maxPooledEncoders) {
+		this.maxPooledEncoders = maxPooledEncoders > 0
+				? maxPooledEncoders : MsgPackEncoderPool.DEFAULT_MAX_POOLED_ENCODERS;
+	}
+
+	public int getMaxPooledEncoders() {
+		return maxPooledEncoders;
+	}
+
+	public synchronized int getPooledEncoderCount() {
+		return encoders.size();
+	}
+
+	public MsgPackEncoder acquire(MsgPackWriter writer) {
+		MsgPackEncoder encoder;
+		synchronized(this) {
+			encoder = encoders.pollFirst();
+		}
+		if(encoder == null)
+			return new MsgPackEncoder(writer);
+		encoder.reset(writer);
+		return encoder;
+	}
+
+	public void release(MsgPackEncoder encoder) {
+		if(encoder == null)
+			return;
+		// drop references to the caller's writer and output region
+		encoder.reset(null);
+		encoder.useStagingBuffer();
+		synchronized(this) {
+			if(encoders.size() < maxPooledEncoders)
+				encoders.addFirst(encoder);
+		}
+	}
+
+}
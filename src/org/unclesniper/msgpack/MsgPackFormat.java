@@ -0,0 +1,235 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteOrder;
+import java.lang.invoke.VarHandle;
+import java.lang.invoke.MethodHandles;
+
+final class MsgPackFormat {
+
+	/* Initiator descriptor layout:
+	 *   bits  0 -  3: kind (ordinal of MsgPackType)
+	 *   bits  4 -  7: size of the big-endian field following the initiator
+	 *                 (value for integers and floats, length for everything else)
+	 *   bit   8     : field is a signed integer
+	 *   bits 16 - 31: immediate value (fixint value, fix* length, boolean value)
+	 */
+
+	static final int KIND_NIL = 0;
+
+	static final int KIND_BOOLEAN = 1;
+
+	static final int KIND_INTEGER = 2;
+
+	static final int KIND_FLOAT = 3;
+
+	static final int KIND_STRING = 4;
+
+	static final int KIND_BINARY = 5;
+
+	static final int KIND_ARRAY = 6;
+
+	static final int KIND_MAP = 7;
+
+	static final int KIND_EXTENSION = 8;
+
+	static final int RESERVED = -1;
+
+	static final int SIGNED = 0x100;
+
+	private static final MsgPackType[] TYPES = MsgPackType.values();
+
+	private static final int[] INITIATORS = new int[256];
+
+	private static final VarHandle SHORT_VIEW = MethodHandles.byteArrayViewVarHandle(short[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	static {
+		for(int b = 0x00; b <= 0x7F; ++b)
+			MsgPackFormat.INITIATORS[b] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 0, b);
+		for(int b = 0x80; b <= 0x8F; ++b)
+			MsgPackFormat.INITIATORS[b] = MsgPackFormat.descriptor(MsgPackFormat.KIND_MAP, 0, b & 0x0F);
+		for(int b = 0x90; b <= 0x9F; ++b)
+			MsgPackFormat.INITIATORS[b] = MsgPackFormat.descriptor(MsgPackFormat.KIND_ARRAY, 0, b & 0x0F);
+		for(int b = 0xA0; b <= 0xBF; ++b)
+			MsgPackFormat.INITIATORS[b] = MsgPackFormat.descriptor(MsgPackFormat.KIND_STRING, 0, b & 0x1F);
+		for(int b = 0xE0; b <= 0xFF; ++b)
+			MsgPackFormat.INITIATORS[b] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 0, (byte)b);
+		MsgPackFormat.INITIATORS[0xC0] = MsgPackFormat.descriptor(MsgPackFormat.KIND_NIL, 0, 0);
+		MsgPackFormat.INITIATORS[0xC1] = MsgPackFormat.RESERVED;
+		MsgPackFormat.INITIATORS[0xC2] = MsgPackFormat.descriptor(MsgPackFormat.KIND_BOOLEAN, 0, 0);
+		MsgPackFormat.INITIATORS[0xC3] = MsgPackFormat.descriptor(MsgPackFormat.KIND_BOOLEAN, 0, 1);
+		MsgPackFormat.INITIATORS[0xC4] = MsgPackFormat.descriptor(MsgPackFormat.KIND_BINARY, 1, 0);
+		MsgPackFormat.INITIATORS[0xC5] = MsgPackFormat.descriptor(MsgPackFormat.KIND_BINARY, 2, 0);
+		MsgPackFormat.INITIATORS[0xC6] = MsgPackFormat.descriptor(MsgPackFormat.KIND_BINARY, 4, 0);
+		MsgPackFormat.INITIATORS[0xC7] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 1, 0);
+		MsgPackFormat.INITIATORS[0xC8] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 2, 0);
+		MsgPackFormat.INITIATORS[0xC9] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 4, 0);
+		MsgPackFormat.INITIATORS[0xCA] = MsgPackFormat.descriptor(MsgPackFormat.KIND_FLOAT, 4, 0);
+		MsgPackFormat.INITIATORS[0xCB] = MsgPackFormat.descriptor(MsgPackFormat.KIND_FLOAT, 8, 0);
+		MsgPackFormat.INITIATORS[0xCC] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 1, 0);
+		MsgPackFormat.INITIATORS[0xCD] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 2, 0);
+		MsgPackFormat.INITIATORS[0xCE] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 4, 0);
+		MsgPackFormat.INITIATORS[0xCF] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 8, 0);
+		MsgPackFormat.INITIATORS[0xD0] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 1, 0)
+				| MsgPackFormat.SIGNED;
+		MsgPackFormat.INITIATORS[0xD1] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 2, 0)
+				| MsgPackFormat.SIGNED;
+		MsgPackFormat.INITIATORS[0xD2] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 4, 0)
+				| MsgPackFormat.SIGNED;
+		MsgPackFormat.INITIATORS[0xD3] = MsgPackFormat.descriptor(MsgPackFormat.KIND_INTEGER, 8, 0)
+				| MsgPackFormat.SIGNED;
+		MsgPackFormat.INITIATORS[0xD4] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 0, 1);
+		MsgPackFormat.INITIATORS[0xD5] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 0, 2);
+		MsgPackFormat.INITIATORS[0xD6] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 0, 4);
+		MsgPackFormat.INITIATORS[0xD7] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 0, 8);
+		MsgPackFormat.INITIATORS[0xD8] = MsgPackFormat.descriptor(MsgPackFormat.KIND_EXTENSION, 0, 16);
+		MsgPackFormat.INITIATORS[0xD9] = MsgPackFormat.descriptor(MsgPackFormat.KIND_STRING, 1, 0);
+		MsgPackFormat.INITIATORS[0xDA] = MsgPackFormat.descriptor(MsgPackFormat.KIND_STRING, 2, 0);
+		MsgPackFormat.INITIATORS[0xDB] = MsgPackFormat.descriptor(MsgPackFormat.KIND_STRING, 4, 0);
+		MsgPackFormat.INITIATORS[0xDC] = MsgPackFormat.descriptor(MsgPackFormat.KIND_ARRAY, 2, 0);
+		MsgPackFormat.INITIATORS[0xDD] = MsgPackFormat.descriptor(MsgPackFormat.KIND_ARRAY, 4, 0);
+		MsgPackFormat.INITIATORS[0xDE] = MsgPackFormat.descriptor(MsgPackFormat.KIND_MAP, 2, 0);
+		MsgPackFormat.INITIATORS[0xDF] = MsgPackFormat.descriptor(MsgPackFormat.KIND_MAP, 4, 0);
+	}
+
+	private MsgPackFormat() {}
+
+	private static int descriptor(int kind, int fieldSize, int immediate) {
+		return kind | (fieldSize << 4) | (immediate << 16);
+	}
+
+	static int describe(int initiator) {
+		return MsgPackFormat.INITIATORS[initiator & 0xFF];
+	}
+
+	static int kind(int descriptor) {
+		return descriptor & 0x0F;
+	}
+
+	static MsgPackType type(int descriptor) {
+		return MsgPackFormat.TYPES[descriptor & 0x0F];
+	}
+
+	static int fieldSize(int descriptor) {
+		return (descriptor >>> 4) & 0x0F;
+	}
+
+	static boolean isSigned(int descriptor) {
+		return (descriptor & MsgPackFormat.SIGNED) != 0;
+	}
+
+	static int immediate(int descriptor) {
+		return descriptor >> 16;
+	}
+
+	static int getShort(byte[] bytes, int offset) {
+		return (short)MsgPackFormat.SHORT_VIEW.get(bytes, offset);
+	}
+
+	static int getInt(byte[] bytes, int offset) {
+		return (int)MsgPackFormat.INT_VIEW.get(bytes, offset);
+	}
+
+	static long getLong(byte[] bytes, int offset) {
+		return (long)MsgPackFormat.LONG_VIEW.get(bytes, offset);
+	}
+
+	// reads a field of the given size as an unsigned value (except for size 8)
+	static long getUnsigned(byte[] bytes, int offset, int size) {
+		switch(size) {
+			case 0:
+				return 0l;
+			case 1:
+				return (long)bytes[offset] & 0xFFl;
+			case 2:
+				return (long)MsgPackFormat.getShort(bytes, offset) & 0xFFFFl;
+			case 4:
+				return (long)MsgPackFormat.getInt(bytes, offset) & 0xFFFFFFFFl;
+			case 8:
+				return MsgPackFormat.getLong(bytes, offset);
+			default:
+				throw new Doom("Illegal field size: " + size);
+		}
+	}
+
+	static MsgPackWireFormatException truncated(int offset) {
+		return new MsgPackWireFormatException("Value at offset " + offset + " extends beyond the end of the input");
+	}
+
+	// returns the offset just past the complete value starting at the given offset
+	static int skip(byte[] bytes, int offset, int limit) throws MsgPackWireFormatException {
+		int position = offset;
+		long pending = 1l;
+		while(pending > 0l) {
+			--pending;
+			if(position >= limit)
+				throw MsgPackFormat.truncated(offset);
+			int descriptor = MsgPackFormat.describe(bytes[position]);
+			if(descriptor == MsgPackFormat.RESERVED)
+				throw new ReservedInitiatorByteUsedException();
+			int size = MsgPackFormat.fieldSize(descriptor);
+			if(limit - position - 1 < size)
+				throw MsgPackFormat.truncated(offset);
+			int kind = MsgPackFormat.kind(descriptor);
+			long length;
+			switch(kind) {
+				case MsgPackFormat.KIND_STRING:
+				case MsgPackFormat.KIND_BINARY:
+				case MsgPackFormat.KIND_EXTENSION:
+				case MsgPackFormat.KIND_ARRAY:
+				case MsgPackFormat.KIND_MAP:
+					length = size == 0 ? (long)MsgPackFormat.immediate(descriptor)
+							: MsgPackFormat.getUnsigned(bytes, position + 1, size);
+					break;
+				default:
+					// scalars are done once their field has been skipped
+					length = 0l;
+					break;
+			}
+			position += 1 + size;
+			// payload plus type byte
+			if(kind == MsgPackFormat.KIND_EXTENSION)
+				++length;
+			switch(kind) {
+				case MsgPackFormat.KIND_EXTENSION:
+				case MsgPackFormat.KIND_STRING:
+				case MsgPackFormat.KIND_BINARY:
+					if(length > (long)(limit - position))
+						throw MsgPackFormat.truncated(offset);
+					position += (int)length;
+					break;
+				case MsgPackFormat.KIND_ARRAY:
+					pending += length;
+					break;
+				case MsgPackFormat.KIND_MAP:
+					pending += length * 2l;
+					break;
+			}
+		}
+		return position;
+	}
+
+	static long getSigned(byte[] bytes, int offset, int size) {
+		switch(size) {
+			case 0:
+				return 0l;
+			case 1:
+				return (long)bytes[offset];
+			case 2:
+				return (long)MsgPackFormat.getShort(bytes, offset);
+			case 4:
+				return (long)MsgPackFormat.getInt(bytes, offset);
+			case 8:
+				return MsgPackFormat.getLong(bytes, offset);
+			default:
+				throw new Doom("Illegal field size: " + size);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.nio.ByteBuffer;
+
+public final class MsgPackIndex {
+
+	public static final int DEFAULT_THRESHOLD = 64;
+
+	// "MPIX", followed by the format version
+	private static final int MAGIC = 0x4D504958;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 20;
+
+	private final int sourceLength;
+
+	private final int threshold;
+
+	// offsets of indexed containers, relative to the start of the value, in ascending order
+	private final int[] containers;
+
+	// entries of containers[i] are entries[entryStarts[i]] up to entries[entryStarts[i + 1]]
+	private final int[] entryStarts;
+
+	private final int[] entries;
+
+	private MsgPackIndex(int sourceLength, int threshold, int[] containers, int[] entryStarts, int[] entries) {
+		this.sourceLength = sourceLength;
+		this.threshold = threshold;
+		this.containers = containers;
+		this.entryStarts = entryStarts;
+		this.entries = entries;
+	}
+
+	public static MsgPackIndex build(byte[] bytes) throws MsgPackWireFormatException {
+		return MsgPackIndex.build(bytes, 0, bytes.length, 0);
+	}
+
+	/* Indexes the single value that starts at the given offset. Map entries
+	 * are keys and values alternately, so a map counts twice its pair count
+	 * against the threshold.
+	 */
+	public static MsgPackIndex build(byte[] bytes, int offset, int length, int threshold)
+			throws MsgPackWireFormatException {
+		Objects.checkFromIndexSize(offset, length, bytes.length);
+		if(threshold <= 0)
+			threshold = MsgPackIndex.DEFAULT_THRESHOLD;
+		int limit = offset + length;
+		int[] containers = new int[8];
+		int[] entryStarts = new int[9];
+		int containerCount = 0;
+		int[] entries = new int[64];
+		int entryCount = 0;
+		long[] remaining = new long[16];
+		boolean[] indexed = new boolean[16];
+		// next slot to fill for each indexed level; nested containers reserve their own range
+		int[] cursor = new int[16];
+		int depth = 0;
+		int position = offset;
+		for(;;) {
+			if(depth > 0) {
+				--remaining[depth - 1];
+				if(indexed[depth - 1])
+					entries[cursor[depth - 1]++] = position - offset;
+			}
+			if(position >= limit)
+				throw MsgPackFormat.truncated(position);
+			int descriptor = MsgPackFormat.describe(bytes[position]);
+			if(descriptor == MsgPackFormat.RESERVED)
+				throw new ReservedInitiatorByteUsedException();
+			int size = MsgPackFormat.fieldSize(descriptor);
+			int kind = MsgPackFormat.kind(descriptor);
+			if(kind != MsgPackFormat.KIND_ARRAY && kind != MsgPackFormat.KIND_MAP) {
+				position = MsgPackFormat.skip(bytes, position, limit);
+				while(depth > 0 && remaining[depth - 1] == 0l)
+					--depth;
+				if(depth == 0)
+					break;
+				continue;
+			}
+			if(limit - position - 1 < size)
+				throw MsgPackFormat.truncated(position);
+			long count = size == 0 ? (long)MsgPackFormat.immediate(descriptor)
+					: MsgPackFormat.getUnsigned(bytes, position + 1, size);
+			if(kind == MsgPackFormat.KIND_MAP)
+				count *= 2l;
+			int start = position;
+			position += 1 + size;
+			if(count > (long)(limit - position))
+				throw MsgPackFormat.truncated(start);
+			if(count == 0l) {
+				while(depth > 0 && remaining[depth - 1] == 0l)
+					--depth;
+				if(depth == 0)
+					break;
+				continue;
+			}
+			if(depth == remaining.length) {
+				remaining = Arrays.copyOf(remaining, depth * 2);
+				indexed = Arrays.copyOf(indexed, depth * 2);
+				cursor = Arrays.copyOf(cursor, depth * 2);
+			}
+			remaining[depth] = count;
+			indexed[depth] = count >= (long)threshold;
+			if(indexed[depth]) {
+				if(containerCount == containers.length) {
+					containers = Arrays.copyOf(containers, containerCount * 2);
+					entryStarts = Arrays.copyOf(entryStarts, containerCount * 2 + 1);
+				}
+				containers[containerCount] = start - offset;
+				entryStarts[containerCount++] = entryCount;
+				cursor[depth] = entryCount;
+				// every entry takes at least one byte, so the reservations cannot exceed the input length
+				entryCount += (int)count;
+				if(entryCount > entries.length)
+					entries = Arrays.copyOf(entries, Math.max(entries.length * 2, entryCount));
+			}
+			++depth;
+		}
+		entryStarts[containerCount] = entryCount;
+		return new MsgPackIndex(position - offset, threshold, Arrays.copyOf(containers, containerCount),
+				Arrays.copyOf(entryStarts, containerCount + 1), Arrays.copyOf(entries, entryCount));
+	}
+
+	public int getSourceLength() {
+		return sourceLength;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public int getContainerCount() {
+		return containers.length;
+	}
+
+	// -1 if the container at the given offset has not been indexed
+	int findContainer(int containerOffset) {
+		int slot = Arrays.binarySearch(containers, containerOffset);
+		return slot < 0 ? -1 : slot;
+	}
+
+	int getSlotEntryOffset(int slot, int entry) {
+		return entries[entryStarts[slot] + Objects.checkIndex(entry, entryStarts[slot + 1] - entryStarts[slot])];
+	}
+
+	// -1 if the container at the given offset has not been indexed
+	public int getEntryOffset(int containerOffset, int entry) {
+		int slot = findContainer(containerOffset);
+		return slot < 0 ? -1 : getSlotEntryOffset(slot, entry);
+	}
+
+	public int getSerializedSize() {
+		return MsgPackIndex.HEADER_SIZE + (containers.length * 2 + 1 + entries.length) * 4;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(MsgPackIndex.MAGIC);
+		buffer.putInt(MsgPackIndex.VERSION);
+		buffer.putInt(sourceLength);
+		buffer.putInt(threshold);
+		buffer.putInt(containers.length);
+		for(int container : containers)
+			buffer.putInt(container);
+		for(int start : entryStarts)
+			buffer.putInt(start);
+		for(int entry : entries)
+			buffer.putInt(entry);
+	}
+
+	public byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	public static MsgPackIndex readFrom(ByteBuffer buffer) {
+		if(buffer.remaining() < MsgPackIndex.HEADER_SIZE || buffer.getInt() != MsgPackIndex.MAGIC)
+			throw new IllegalArgumentException("Not a msgpack index");
+		int version = buffer.getInt();
+		if(version != MsgPackIndex.VERSION)
+			throw new IllegalArgumentException("Unsupported msgpack index version: " + version);
+		int sourceLength = buffer.getInt();
+		int threshold = buffer.getInt();
+		int containerCount = buffer.getInt();
+		if(containerCount < 0 || (long)buffer.remaining() < ((long)containerCount * 2l + 1l) * 4l)
+			throw new IllegalArgumentException("Truncated msgpack index");
+		int[] containers = new int[containerCount];
+		for(int i = 0; i < containerCount; ++i)
+			containers[i] = buffer.getInt();
+		int[] entryStarts = new int[containerCount + 1];
+		for(int i = 0; i <= containerCount; ++i)
+			entryStarts[i] = buffer.getInt();
+		int entryCount = entryStarts[containerCount];
+		if(entryCount < 0 || (long)buffer.remaining() < (long)entryCount * 4l)
+			throw new IllegalArgumentException("Truncated msgpack index");
+		int[] entries = new int[entryCount];
+		for(int i = 0; i < entryCount; ++i)
+			entries[i] = buffer.getInt();
+		// views index into the caller's array with these, so nothing is taken on trust
+		if(sourceLength < 0)
+			throw new IllegalArgumentException("Negative source length in msgpack index: " + sourceLength);
+		for(int i = 0; i < containerCount; ++i) {
+			if(containers[i] < 0 || containers[i] >= sourceLength || i > 0 && containers[i] <= containers[i - 1])
+				throw new IllegalArgumentException("Container offsets in msgpack index are not ascending "
+						+ "within the source");
+			if(entryStarts[i] < 0 || entryStarts[i] > entryStarts[i + 1])
+				throw new IllegalArgumentException("Entry ranges in msgpack index are not ascending");
+		}
+		for(int entry : entries) {
+			if(entry < 0 || entry >= sourceLength)
+				throw new IllegalArgumentException("Entry offset in msgpack index lies outside the source: "
+						+ entry);
+		}
+		return new MsgPackIndex(sourceLength, threshold, containers, entryStarts, entries);
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+
+public final class MsgPackKeyTable {
+
+	private final byte[][] keys;
+
+	// open addressing; each slot holds a key index plus one, zero meaning empty
+	private final int[] slots;
+
+	private final int mask;
+
+	private final int maxKeyLength;
+
+	public MsgPackKeyTable(byte[]... keys) {
+		this.keys = keys.clone();
+		int capacity = 4;
+		while(capacity < keys.length * 2)
+			capacity <<= 1;
+		slots = new int[capacity];
+		mask = capacity - 1;
+		int max = 0;
+		for(byte[] key : keys) {
+			if(key.length > max)
+				max = key.length;
+		}
+		maxKeyLength = max;
+		for(int i = 0; i < keys.length; ++i) {
+			byte[] key = keys[i];
+			if(lookup(key, 0, key.length) >= 0)
+				throw new IllegalArgumentException("Duplicate key: " + new String(key, StandardCharsets.UTF_8));
+			int slot = MsgPackKeyTable.hash(key, 0, key.length) & mask;
+			while(slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = i + 1;
+		}
+	}
+
+	public static MsgPackKeyTable ofStrings(String... keys) {
+		byte[][] bytes = new byte[keys.length][];
+		for(int i = 0; i < keys.length; ++i)
+			bytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+		return new MsgPackKeyTable(bytes);
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public int getMaxKeyLength() {
+		return maxKeyLength;
+	}
+
+	public byte[] getKey(int index) {
+		return keys[index].clone();
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int h = length;
+		int end = offset + length;
+		for(int i = offset; i < end; ++i)
+			h = h * 31 + bytes[i];
+		return h ^ (h >>> 16);
+	}
+
+	public int lookup(byte[] bytes, int offset, int length) {
+		if(length > maxKeyLength)
+			return -1;
+		int slot = MsgPackKeyTable.hash(bytes, offset, length) & mask;
+		for(;;) {
+			int entry = slots[slot];
+			if(entry == 0)
+				return -1;
+			byte[] key = keys[entry - 1];
+			if(key.length == length && Arrays.equals(key, 0, length, bytes, offset, offset + length))
+				return entry - 1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+}
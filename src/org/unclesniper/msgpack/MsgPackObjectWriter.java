@@ -0,0 +1,25 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+
+public class MsgPackObjectWriter {
+
+	private final StringEncoderMsgPackSink sink;
+
+	public MsgPackObjectWriter(StringEncoderMsgPackSink sink) {
+		this.sink = sink;
+	}
+
+	public MsgPackObjectWriter(MsgPackByteSink sink) {
+		this(new StringEncoderMsgPackSink(sink, 0));
+	}
+
+	public StringEncoderMsgPackSink getSink() {
+		return sink;
+	}
+
+	public void writeObject(Object value) throws IOException {
+		MsgPackSerializers.serialize(value, sink);
+	}
+
+}
@@ -0,0 +1,382 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+
+public class MsgPackReader {
+
+	private static final class ByteBufferSource implements MsgPackSource {
+
+		private final ByteBuffer bytes;
+
+		ByteBufferSource(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		public int read(byte[] buffer, int offset, int length) {
+			int count = bytes.remaining();
+			if(count == 0)
+				return -1;
+			if(count > length)
+				count = length;
+			bytes.get(buffer, offset, count);
+			return count;
+		}
+
+	}
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private byte[] buffer;
+
+	private int position;
+
+	private int limit;
+
+	private MsgPackSource source;
+
+	private byte[] ownBuffer;
+
+	private int bufferSize;
+
+	private byte extensionType;
+
+	public MsgPackReader(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	public MsgPackReader(byte[] bytes, int offset, int length) {
+		reset(bytes, offset, length);
+	}
+
+	public MsgPackReader(ByteBuffer bytes) {
+		reset(bytes);
+	}
+
+	public MsgPackReader(MsgPackSource source) {
+		this(source, 0);
+	}
+
+	public MsgPackReader(MsgPackSource source, int bufferSize) {
+		this.bufferSize = bufferSize;
+		reset(source);
+	}
+
+	public void reset(byte[] bytes, int offset, int length) {
+		if(offset < 0 || length < 0 || offset > bytes.length - length)
+			throw new IndexOutOfBoundsException("Region [" + offset + ", " + offset + " + " + length
+					+ ") is out of bounds for array of length " + bytes.length);
+		buffer = bytes;
+		position = offset;
+		limit = offset + length;
+		source = null;
+	}
+
+	public void reset(ByteBuffer bytes) {
+		if(bytes.hasArray())
+			reset(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+		else
+			reset(new MsgPackReader.ByteBufferSource(bytes.duplicate()));
+	}
+
+	public void reset(MsgPackSource source) {
+		if(ownBuffer == null)
+			ownBuffer = new byte[bufferSize > 0 ? bufferSize : MsgPackReader.DEFAULT_BUFFER_SIZE];
+		buffer = ownBuffer;
+		position = limit = 0;
+		this.source = source;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public byte getExtensionType() {
+		return extensionType;
+	}
+
+	private boolean fill(int count) throws IOException {
+		if(limit - position >= count)
+			return true;
+		if(source == null)
+			return false;
+		int available = limit - position;
+		if(count > buffer.length) {
+			int newSize = buffer.length * 2;
+			byte[] newBuffer = new byte[newSize > count ? newSize : count];
+			System.arraycopy(buffer, position, newBuffer, 0, available);
+			buffer = ownBuffer = newBuffer;
+		}
+		else if(position > 0)
+			System.arraycopy(buffer, position, buffer, 0, available);
+		position = 0;
+		limit = available;
+		while(limit < count) {
+			int read = source.read(buffer, limit, buffer.length - limit);
+			if(read < 0)
+				return false;
+			limit += read;
+		}
+		return true;
+	}
+
+	private void require(int count) throws IOException {
+		if(limit - position < count && !fill(count))
+			throw new EOFException("Unexpected end of input: " + count + " bytes required, but only "
+					+ (limit - position) + " are available");
+	}
+
+	public boolean hasNext() throws IOException {
+		return position < limit || fill(1);
+	}
+
+	public int peek() throws IOException {
+		require(1);
+		return buffer[position] & 0xFF;
+	}
+
+	private static int describe(int initiator) throws ReservedInitiatorByteUsedException {
+		int descriptor = MsgPackFormat.describe(initiator);
+		if(descriptor == MsgPackFormat.RESERVED)
+			throw new ReservedInitiatorByteUsedException();
+		return descriptor;
+	}
+
+	public MsgPackType nextType() throws IOException {
+		return MsgPackFormat.type(MsgPackReader.describe(peek()));
+	}
+
+	// makes sure the initiator and its field are buffered
+	private int expect(int kind) throws IOException {
+		int descriptor = MsgPackReader.describe(peek());
+		if(MsgPackFormat.kind(descriptor) != kind)
+			throw new UnexpectedValueTypeException(MsgPackFormat.type(kind), MsgPackFormat.type(descriptor));
+		require(1 + MsgPackFormat.fieldSize(descriptor));
+		return descriptor;
+	}
+
+	public void readNil() throws IOException {
+		expect(MsgPackFormat.KIND_NIL);
+		++position;
+	}
+
+	public boolean readBoolean() throws IOException {
+		int descriptor = expect(MsgPackFormat.KIND_BOOLEAN);
+		++position;
+		return MsgPackFormat.immediate(descriptor) != 0;
+	}
+
+	public long readLong() throws IOException {
+		int descriptor = expect(MsgPackFormat.KIND_INTEGER);
+		int size = MsgPackFormat.fieldSize(descriptor);
+		long value;
+		if(size == 0)
+			value = (long)MsgPackFormat.immediate(descriptor);
+		else if(MsgPackFormat.isSigned(descriptor))
+			value = MsgPackFormat.getSigned(buffer, position + 1, size);
+		else {
+			value = MsgPackFormat.getUnsigned(buffer, position + 1, size);
+			if(value < 0l) {
+				position += 1 + size;
+				throw new MsgPackWireFormatException("Integer out of range for long: " + Long.toUnsignedString(value));
+			}
+		}
+		position += 1 + size;
+		return value;
+	}
+
+	public int readInt() throws IOException {
+		return MsgPackReader.toInt(readLong());
+	}
+
+	public short readShort() throws IOException {
+		return MsgPackReader.toShort(readLong());
+	}
+
+	public byte readByte() throws IOException {
+		return MsgPackReader.toByte(readLong());
+	}
+
+	public char readChar() throws IOException {
+		return MsgPackReader.toChar(readLong());
+	}
+
+	static int toInt(long value) throws MsgPackWireFormatException {
+		if(value < (long)Integer.MIN_VALUE || value > (long)Integer.MAX_VALUE)
+			throw new MsgPackWireFormatException("Integer out of range for int: " + value);
+		return (int)value;
+	}
+
+	static short toShort(long value) throws MsgPackWireFormatException {
+		if(value < (long)Short.MIN_VALUE || value > (long)Short.MAX_VALUE)
+			throw new MsgPackWireFormatException("Integer out of range for short: " + value);
+		return (short)value;
+	}
+
+	static byte toByte(long value) throws MsgPackWireFormatException {
+		if(value < (long)Byte.MIN_VALUE || value > (long)Byte.MAX_VALUE)
+			throw new MsgPackWireFormatException("Integer out of range for byte: " + value);
+		return (byte)value;
+	}
+
+	static char toChar(long value) throws MsgPackWireFormatException {
+		if(value < (long)Character.MIN_VALUE || value > (long)Character.MAX_VALUE)
+			throw new MsgPackWireFormatException("Integer out of range for char: " + value);
+		return (char)value;
+	}
+
+	public double readDouble() throws IOException {
+		int descriptor = expect(MsgPackFormat.KIND_FLOAT);
+		double value;
+		if(MsgPackFormat.fieldSize(descriptor) == 4) {
+			value = (double)Float.intBitsToFloat(MsgPackFormat.getInt(buffer, position + 1));
+			position += 5;
+		}
+		else {
+			value = Double.longBitsToDouble(MsgPackFormat.getLong(buffer, position + 1));
+			position += 9;
+		}
+		return value;
+	}
+
+	private int readLength(int kind) throws IOException {
+		int descriptor = expect(kind);
+		int size = MsgPackFormat.fieldSize(descriptor);
+		long length = size == 0 ? (long)MsgPackFormat.immediate(descriptor)
+				: MsgPackFormat.getUnsigned(buffer, position + 1, size);
+		position += 1 + size;
+		if(length > (long)Integer.MAX_VALUE)
+			throw new MsgPackWireFormatException("Length exceeds int32 address space: " + length);
+		return (int)length;
+	}
+
+	public int readStringHeader() throws IOException {
+		return readLength(MsgPackFormat.KIND_STRING);
+	}
+
+	public int readBinaryHeader() throws IOException {
+		return readLength(MsgPackFormat.KIND_BINARY);
+	}
+
+	public int readArrayHeader() throws IOException {
+		return readLength(MsgPackFormat.KIND_ARRAY);
+	}
+
+	public int readMapHeader() throws IOException {
+		return readLength(MsgPackFormat.KIND_MAP);
+	}
+
+	public int readExtensionHeader() throws IOException {
+		int length = readLength(MsgPackFormat.KIND_EXTENSION);
+		require(1);
+		extensionType = buffer[position++];
+		return length;
+	}
+
+	public void readPayload(byte[] bytes, int offset, int count) throws IOException {
+		int chunk = limit - position;
+		if(chunk > count)
+			chunk = count;
+		System.arraycopy(buffer, position, bytes, offset, chunk);
+		position += chunk;
+		offset += chunk;
+		count -= chunk;
+		while(count > 0) {
+			int read = source == null ? -1 : source.read(bytes, offset, count);
+			if(read < 0)
+				throw new EOFException("Unexpected end of input: " + count + " more payload bytes required");
+			offset += read;
+			count -= read;
+		}
+	}
+
+	public byte[] readStringBytes() throws IOException {
+		byte[] bytes = new byte[readStringHeader()];
+		readPayload(bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	public String readString() throws IOException {
+		int length = readStringHeader();
+		if(limit - position >= length) {
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+		byte[] bytes = new byte[length];
+		readPayload(bytes, 0, length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// matches the key in place; returns -1 (with the key consumed) if it is not in the table
+	public int readKey(MsgPackKeyTable keys) throws IOException {
+		int length = readStringHeader();
+		if(length > keys.getMaxKeyLength()) {
+			skipPayload((long)length);
+			return -1;
+		}
+		require(length);
+		int index = keys.lookup(buffer, position, length);
+		position += length;
+		return index;
+	}
+
+	public byte[] readBinary() throws IOException {
+		byte[] bytes = new byte[readBinaryHeader()];
+		readPayload(bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	public void skipPayload(long count) throws IOException {
+		long available = (long)(limit - position);
+		if(count <= available) {
+			position += (int)count;
+			return;
+		}
+		count -= available;
+		position = limit;
+		while(count > 0l) {
+			if(!fill(1))
+				throw new EOFException("Unexpected end of input: " + count + " more payload bytes required");
+			int chunk = limit - position;
+			if((long)chunk > count)
+				chunk = (int)count;
+			position += chunk;
+			count -= (long)chunk;
+		}
+	}
+
+	public void skipValue() throws IOException {
+		long pending = 1l;
+		while(pending > 0l) {
+			--pending;
+			int descriptor = MsgPackReader.describe(peek());
+			int size = MsgPackFormat.fieldSize(descriptor);
+			require(1 + size);
+			long length = size == 0 ? (long)MsgPackFormat.immediate(descriptor)
+					: MsgPackFormat.getUnsigned(buffer, position + 1, size);
+			position += 1 + size;
+			switch(MsgPackFormat.kind(descriptor)) {
+				case MsgPackFormat.KIND_STRING:
+				case MsgPackFormat.KIND_BINARY:
+					skipPayload(length);
+					break;
+				case MsgPackFormat.KIND_EXTENSION:
+					skipPayload(length + 1l);
+					break;
+				case MsgPackFormat.KIND_ARRAY:
+					pending += length;
+					break;
+				case MsgPackFormat.KIND_MAP:
+					pending += length * 2l;
+					break;
+				default:
+					// scalars are done once their field has been skipped
+					break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,9 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+
+public interface MsgPackSerializer<T> {
+
+	void serialize(T value, StringEncoderMsgPackSink sink) throws IOException;
+
+}
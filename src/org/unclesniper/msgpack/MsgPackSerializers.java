@@ -0,0 +1,350 @@
+package org.unclesniper.msgpack;
+
+import java.util.Map;
+import java.util.List;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+public final class MsgPackSerializers {
+
+	private static final MsgPackSerializer<Object> STRING = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			MsgPackSerializers.writeString((String)value, sink);
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> SIGNED = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			sink.integer(((Number)value).longValue(), true);
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> FRACTION = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			sink.fraction(((Number)value).doubleValue());
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> CHARACTER = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			sink.integer((long)((Character)value).charValue(), false);
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> BOOLEAN = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			sink.bool(((Boolean)value).booleanValue());
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> BYTES = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			byte[] bytes = (byte[])value;
+			if(bytes.length == 0) {
+				sink.emptyBinary();
+				return;
+			}
+			int written = sink.binary(bytes, 0, bytes.length);
+			if(written != bytes.length)
+				throw new SynchronicityViolationException(bytes.length, written);
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> ENUM = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			MsgPackSerializers.writeString(((Enum<?>)value).name(), sink);
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> MAP = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			Map<?, ?> map = (Map<?, ?>)value;
+			int size = map.size();
+			if(size == 0) {
+				sink.emptyMap();
+				return;
+			}
+			sink.beginMap(size);
+			int count = 0;
+			for(Map.Entry<?, ?> entry : map.entrySet()) {
+				if(++count > size)
+					throw new SequenceSizeMismatchException((long)size, (long)count, true);
+				MsgPackSerializers.serialize(entry.getKey(), sink);
+				MsgPackSerializers.serialize(entry.getValue(), sink);
+			}
+			if(count < size)
+				throw new SequenceSizeMismatchException((long)size, (long)count, false);
+			sink.endMap();
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> LIST = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			List<?> list = (List<?>)value;
+			int size = list.size();
+			if(size == 0) {
+				sink.emptyArray();
+				return;
+			}
+			sink.beginArray(size);
+			for(int i = 0; i < size; ++i)
+				MsgPackSerializers.serialize(list.get(i), sink);
+			sink.endArray();
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> COLLECTION = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			Collection<?> collection = (Collection<?>)value;
+			int size = collection.size();
+			if(size == 0) {
+				sink.emptyArray();
+				return;
+			}
+			sink.beginArray(size);
+			int count = 0;
+			for(Object element : collection) {
+				if(++count > size)
+					throw new SequenceSizeMismatchException((long)size, (long)count, true);
+				MsgPackSerializers.serialize(element, sink);
+			}
+			if(count < size)
+				throw new SequenceSizeMismatchException((long)size, (long)count, false);
+			sink.endArray();
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> OBJECTS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			Object[] array = (Object[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(Object element : array)
+					MsgPackSerializers.serialize(element, sink);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> LONGS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			long[] array = (long[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(long element : array)
+					sink.integer(element, true);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> INTS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			int[] array = (int[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(int element : array)
+					sink.integer((long)element, true);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> SHORTS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			short[] array = (short[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(short element : array)
+					sink.integer((long)element, true);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> CHARS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			char[] array = (char[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(char element : array)
+					sink.integer((long)element, false);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> DOUBLES = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			double[] array = (double[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(double element : array)
+					sink.fraction(element);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> FLOATS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			float[] array = (float[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(float element : array)
+					sink.fraction((double)element);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final MsgPackSerializer<Object> BOOLEANS = new MsgPackSerializer<Object>() {
+
+		@Override
+		public void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+			boolean[] array = (boolean[])value;
+			if(MsgPackSerializers.beginArray(array.length, sink)) {
+				for(boolean element : array)
+					sink.bool(element);
+				sink.endArray();
+			}
+		}
+
+	};
+
+	private static final ClassValue<MsgPackSerializer<Object>> SERIALIZERS
+			= new ClassValue<MsgPackSerializer<Object>>() {
+
+		@Override
+		protected MsgPackSerializer<Object> computeValue(Class<?> type) {
+			return MsgPackSerializers.create(type);
+		}
+
+	};
+
+	private MsgPackSerializers() {}
+
+	private static MsgPackSerializer<Object> create(Class<?> type) {
+		if(type == String.class)
+			return MsgPackSerializers.STRING;
+		if(type == Long.class || type == Integer.class || type == Short.class || type == Byte.class)
+			return MsgPackSerializers.SIGNED;
+		if(type == Double.class || type == Float.class)
+			return MsgPackSerializers.FRACTION;
+		if(type == Character.class)
+			return MsgPackSerializers.CHARACTER;
+		if(type == Boolean.class)
+			return MsgPackSerializers.BOOLEAN;
+		if(type == byte[].class)
+			return MsgPackSerializers.BYTES;
+		if(Enum.class.isAssignableFrom(type))
+			return MsgPackSerializers.ENUM;
+		if(Map.class.isAssignableFrom(type))
+			return MsgPackSerializers.MAP;
+		if(List.class.isAssignableFrom(type) && RandomAccess.class.isAssignableFrom(type))
+			return MsgPackSerializers.LIST;
+		if(Collection.class.isAssignableFrom(type))
+			return MsgPackSerializers.COLLECTION;
+		if(type.isArray()) {
+			Class<?> component = type.getComponentType();
+			if(!component.isPrimitive())
+				return MsgPackSerializers.OBJECTS;
+			if(component == long.class)
+				return MsgPackSerializers.LONGS;
+			if(component == int.class)
+				return MsgPackSerializers.INTS;
+			if(component == short.class)
+				return MsgPackSerializers.SHORTS;
+			if(component == char.class)
+				return MsgPackSerializers.CHARS;
+			if(component == double.class)
+				return MsgPackSerializers.DOUBLES;
+			if(component == float.class)
+				return MsgPackSerializers.FLOATS;
+			if(component == boolean.class)
+				return MsgPackSerializers.BOOLEANS;
+		}
+		if(type.isPrimitive() || type.isInterface())
+			throw new IllegalArgumentException("No serializer for type: " + type.getName());
+		return new BeanMsgPackSerializer(MsgPackBeanInfo.of(type));
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> MsgPackSerializer<T> forClass(Class<T> type) {
+		return (MsgPackSerializer<T>)MsgPackSerializers.SERIALIZERS.get(type);
+	}
+
+	public static void serialize(Object value, StringEncoderMsgPackSink sink) throws IOException {
+		if(value == null)
+			sink.nil();
+		else
+			MsgPackSerializers.SERIALIZERS.get(value.getClass()).serialize(value, sink);
+	}
+
+	// false if the array was empty and has thus been written in full
+	private static boolean beginArray(int size, StringEncoderMsgPackSink sink) throws IOException {
+		if(size == 0) {
+			sink.emptyArray();
+			return false;
+		}
+		sink.beginArray(size);
+		return true;
+	}
+
+	static void writeString(String value, StringEncoderMsgPackSink sink) throws IOException {
+		int length = value.length();
+		if(length == 0) {
+			sink.emptyString();
+			return;
+		}
+		int written = sink.string(value, 0, length);
+		if(written != length)
+			throw new SynchronicityViolationException(length, written);
+	}
+
+}
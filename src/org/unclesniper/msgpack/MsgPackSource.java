@@ -0,0 +1,10 @@
+package org.unclesniper.msgpack;
+
+import java.io.IOException;
+
+public interface MsgPackSource {
+
+	// returns the number of bytes read, or -1 at end of input
+	int read(byte[] buffer, int offset, int length) throws IOException;
+
+}
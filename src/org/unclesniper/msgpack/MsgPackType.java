@@ -0,0 +1,13 @@
+package org.unclesniper.msgpack;
+
+public enum MsgPackType {
+	NIL,
+	BOOLEAN,
+	INTEGER,
+	FLOAT,
+	STRING,
+	BINARY,
+	ARRAY,
+	MAP,
+	EXTENSION
+}
@@ -0,0 +1,43 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+
+public interface MsgPackValue {
+
+	MsgPackType getType();
+
+	boolean isNil();
+
+	boolean asBoolean() throws MsgPackWireFormatException;
+
+	// unsigned 64-bit values come back with their bits unchanged
+	long asLong() throws MsgPackWireFormatException;
+
+	boolean isSignedInteger() throws MsgPackWireFormatException;
+
+	// also accepts integers
+	double asDouble() throws MsgPackWireFormatException;
+
+	String asString() throws MsgPackWireFormatException;
+
+	// payload of a string, binary or extension value
+	byte[] asBytes() throws MsgPackWireFormatException;
+
+	// read-only, without copying
+	ByteBuffer asByteBuffer() throws MsgPackWireFormatException;
+
+	byte getExtensionType() throws MsgPackWireFormatException;
+
+	// elements of an array, pairs of a map
+	int size() throws MsgPackWireFormatException;
+
+	MsgPackValue get(int index) throws MsgPackWireFormatException;
+
+	// value for a string key, or null if there is none
+	MsgPackValue get(String key) throws MsgPackWireFormatException;
+
+	MsgPackValue getKey(int index) throws MsgPackWireFormatException;
+
+	MsgPackValue getValue(int index) throws MsgPackWireFormatException;
+
+}
@@ -0,0 +1,330 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class MsgPackValueView extends AbstractMsgPackValue {
+
+	private final byte[] bytes;
+
+	private final int limit;
+
+	// of the initiator
+	private final int offset;
+
+	private final int descriptor;
+
+	// first byte past the header (and, for extensions, the type byte)
+	private final int dataOffset;
+
+	// payload length, array element count or map pair count
+	private final int length;
+
+	// containers: start offsets of the first knownChildren entries (map keys and values alternate)
+	private int[] childOffsets;
+
+	private int knownChildren;
+
+	private MsgPackValueView[] children;
+
+	// offsets in the index are relative to base
+	private final MsgPackIndex index;
+
+	private final int base;
+
+	// this container's slot in the index; -1 if not indexed, -2 if not looked up yet
+	private int indexSlot = -2;
+
+	private MsgPackValueView(byte[] bytes, int offset, int limit, MsgPackIndex index, int base)
+			throws MsgPackWireFormatException {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.limit = limit;
+		this.index = index;
+		this.base = base;
+		if(offset >= limit)
+			throw MsgPackFormat.truncated(offset);
+		descriptor = MsgPackFormat.describe(bytes[offset]);
+		if(descriptor == MsgPackFormat.RESERVED)
+			throw new ReservedInitiatorByteUsedException();
+		int size = MsgPackFormat.fieldSize(descriptor);
+		if(limit - offset - 1 < size)
+			throw MsgPackFormat.truncated(offset);
+		int kind = MsgPackFormat.kind(descriptor);
+		int data = offset + 1 + size;
+		long count;
+		if(kind == MsgPackFormat.KIND_EXTENSION) {
+			// type byte precedes the payload
+			if(data >= limit)
+				throw MsgPackFormat.truncated(offset);
+			++data;
+		}
+		switch(kind) {
+			case MsgPackFormat.KIND_EXTENSION:
+			case MsgPackFormat.KIND_STRING:
+			case MsgPackFormat.KIND_BINARY:
+			case MsgPackFormat.KIND_ARRAY:
+			case MsgPackFormat.KIND_MAP:
+				count = size == 0 ? (long)MsgPackFormat.immediate(descriptor)
+						: MsgPackFormat.getUnsigned(bytes, offset + 1, size);
+				// every entry takes at least one byte, so this also bounds container sizes
+				if(count * (kind == MsgPackFormat.KIND_MAP ? 2l : 1l) > (long)(limit - data))
+					throw MsgPackFormat.truncated(offset);
+				break;
+			default:
+				count = 0l;
+				break;
+		}
+		dataOffset = data;
+		length = (int)count;
+	}
+
+	public static MsgPackValueView of(byte[] bytes) throws MsgPackWireFormatException {
+		return new MsgPackValueView(bytes, 0, bytes.length, null, 0);
+	}
+
+	public static MsgPackValueView of(byte[] bytes, int offset, int length) throws MsgPackWireFormatException {
+		return MsgPackValueView.of(bytes, offset, length, null);
+	}
+
+	// the index must have been built for the value starting at the given offset
+	public static MsgPackValueView of(byte[] bytes, int offset, int length, MsgPackIndex index)
+			throws MsgPackWireFormatException {
+		Objects.checkFromIndexSize(offset, length, bytes.length);
+		if(index != null && index.getSourceLength() > length)
+			throw new IllegalArgumentException("Index covers " + index.getSourceLength()
+					+ " bytes, but only " + length + " are given");
+		return new MsgPackValueView(bytes, offset, offset + length, index, offset);
+	}
+
+	// buffers without an accessible array are copied once
+	public static MsgPackValueView of(ByteBuffer bytes) throws MsgPackWireFormatException {
+		if(bytes.hasArray())
+			return MsgPackValueView.of(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+		byte[] copy = new byte[bytes.remaining()];
+		bytes.duplicate().get(copy);
+		return new MsgPackValueView(copy, 0, copy.length, null, 0);
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getEncodedLength() throws MsgPackWireFormatException {
+		return end() - offset;
+	}
+
+	private int kind() {
+		return MsgPackFormat.kind(descriptor);
+	}
+
+	private int end() throws MsgPackWireFormatException {
+		switch(kind()) {
+			case MsgPackFormat.KIND_STRING:
+			case MsgPackFormat.KIND_BINARY:
+			case MsgPackFormat.KIND_EXTENSION:
+				return dataOffset + length;
+			case MsgPackFormat.KIND_ARRAY:
+			case MsgPackFormat.KIND_MAP:
+				{
+					int entries = entryCount();
+					if(entries == 0)
+						return dataOffset;
+					return MsgPackFormat.skip(bytes, childOffset(entries - 1), limit);
+				}
+			default:
+				return dataOffset;
+		}
+	}
+
+	private int entryCount() {
+		return kind() == MsgPackFormat.KIND_MAP ? length * 2 : length;
+	}
+
+	private boolean isIndexed() {
+		if(indexSlot == -2)
+			indexSlot = index == null ? -1 : index.findContainer(offset - base);
+		return indexSlot >= 0;
+	}
+
+	// finds the start of the given entry, scanning only past entries not seen before
+	private int childOffset(int entry) throws MsgPackWireFormatException {
+		if(isIndexed())
+			return base + index.getSlotEntryOffset(indexSlot, entry);
+		if(childOffsets == null) {
+			childOffsets = new int[Math.min(entryCount(), 16)];
+			childOffsets[0] = dataOffset;
+			knownChildren = 1;
+		}
+		if(entry >= childOffsets.length)
+			childOffsets = Arrays.copyOf(childOffsets, Math.min(Math.max(childOffsets.length * 2, entry + 1),
+					entryCount()));
+		while(knownChildren <= entry) {
+			childOffsets[knownChildren] = MsgPackFormat.skip(bytes, childOffsets[knownChildren - 1], limit);
+			++knownChildren;
+		}
+		return childOffsets[entry];
+	}
+
+	private MsgPackValueView child(int entry) throws MsgPackWireFormatException {
+		// indexed containers are the large ones; their offsets are at hand, so views are not worth keeping
+		if(isIndexed())
+			return new MsgPackValueView(bytes, childOffset(entry), limit, index, base);
+		if(children == null)
+			children = new MsgPackValueView[Math.min(entryCount(), 16)];
+		if(entry >= children.length)
+			children = Arrays.copyOf(children, Math.min(Math.max(children.length * 2, entry + 1), entryCount()));
+		MsgPackValueView view = children[entry];
+		if(view == null)
+			children[entry] = view = new MsgPackValueView(bytes, childOffset(entry), limit, index, base);
+		return view;
+	}
+
+	private void requirePayload() throws MsgPackWireFormatException {
+		switch(kind()) {
+			case MsgPackFormat.KIND_STRING:
+			case MsgPackFormat.KIND_BINARY:
+			case MsgPackFormat.KIND_EXTENSION:
+				return;
+			default:
+				throw expected(MsgPackType.BINARY);
+		}
+	}
+
+	// compares a map key in place, without creating a view for it
+	private boolean keyMatches(int keyOffset, byte[] key) throws MsgPackWireFormatException {
+		if(keyOffset >= limit)
+			throw MsgPackFormat.truncated(keyOffset);
+		int keyDescriptor = MsgPackFormat.describe(bytes[keyOffset]);
+		if(keyDescriptor == MsgPackFormat.RESERVED || MsgPackFormat.kind(keyDescriptor) != MsgPackFormat.KIND_STRING)
+			return false;
+		int size = MsgPackFormat.fieldSize(keyDescriptor);
+		int start = keyOffset + 1 + size;
+		if(start > limit)
+			throw MsgPackFormat.truncated(keyOffset);
+		long keyLength = size == 0 ? (long)MsgPackFormat.immediate(keyDescriptor)
+				: MsgPackFormat.getUnsigned(bytes, keyOffset + 1, size);
+		// only the key's own offset is known to be in bounds, not its payload
+		if(keyLength > (long)(limit - start))
+			throw MsgPackFormat.truncated(keyOffset);
+		return keyLength == (long)key.length && Arrays.equals(bytes, start, start + key.length, key, 0, key.length);
+	}
+
+	@Override
+	public MsgPackType getType() {
+		return MsgPackFormat.type(descriptor);
+	}
+
+	@Override
+	public boolean asBoolean() throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_BOOLEAN)
+			throw expected(MsgPackType.BOOLEAN);
+		return MsgPackFormat.immediate(descriptor) != 0;
+	}
+
+	@Override
+	public long asLong() throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_INTEGER)
+			throw expected(MsgPackType.INTEGER);
+		int size = MsgPackFormat.fieldSize(descriptor);
+		if(size == 0)
+			return (long)MsgPackFormat.immediate(descriptor);
+		if(MsgPackFormat.isSigned(descriptor))
+			return MsgPackFormat.getSigned(bytes, offset + 1, size);
+		return MsgPackFormat.getUnsigned(bytes, offset + 1, size);
+	}
+
+	@Override
+	public boolean isSignedInteger() throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_INTEGER)
+			throw expected(MsgPackType.INTEGER);
+		return MsgPackFormat.fieldSize(descriptor) == 0 || MsgPackFormat.isSigned(descriptor);
+	}
+
+	@Override
+	public double asDouble() throws MsgPackWireFormatException {
+		switch(kind()) {
+			case MsgPackFormat.KIND_FLOAT:
+				if(MsgPackFormat.fieldSize(descriptor) == 4)
+					return (double)Float.intBitsToFloat(MsgPackFormat.getInt(bytes, offset + 1));
+				return Double.longBitsToDouble(MsgPackFormat.getLong(bytes, offset + 1));
+			case MsgPackFormat.KIND_INTEGER:
+				return isSignedInteger() ? (double)asLong() : AbstractMsgPackValue.unsignedToDouble(asLong());
+			default:
+				throw expected(MsgPackType.FLOAT);
+		}
+	}
+
+	@Override
+	public String asString() throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_STRING)
+			throw expected(MsgPackType.STRING);
+		return new String(bytes, dataOffset, length, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] asBytes() throws MsgPackWireFormatException {
+		requirePayload();
+		return Arrays.copyOfRange(bytes, dataOffset, dataOffset + length);
+	}
+
+	@Override
+	public ByteBuffer asByteBuffer() throws MsgPackWireFormatException {
+		requirePayload();
+		return ByteBuffer.wrap(bytes, dataOffset, length).slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public byte getExtensionType() throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_EXTENSION)
+			throw expected(MsgPackType.EXTENSION);
+		return bytes[dataOffset - 1];
+	}
+
+	@Override
+	public int size() throws MsgPackWireFormatException {
+		switch(kind()) {
+			case MsgPackFormat.KIND_ARRAY:
+			case MsgPackFormat.KIND_MAP:
+				return length;
+			default:
+				throw expected(MsgPackType.ARRAY);
+		}
+	}
+
+	@Override
+	public MsgPackValue get(int index) throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_ARRAY)
+			throw expected(MsgPackType.ARRAY);
+		return child(Objects.checkIndex(index, length));
+	}
+
+	@Override
+	public MsgPackValue get(String key) throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_MAP)
+			throw expected(MsgPackType.MAP);
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		for(int i = 0; i < length; ++i) {
+			if(keyMatches(childOffset(i * 2), keyBytes))
+				return child(i * 2 + 1);
+		}
+		return null;
+	}
+
+	@Override
+	public MsgPackValue getKey(int index) throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_MAP)
+			throw expected(MsgPackType.MAP);
+		return child(Objects.checkIndex(index, length) * 2);
+	}
+
+	@Override
+	public MsgPackValue getValue(int index) throws MsgPackWireFormatException {
+		if(kind() != MsgPackFormat.KIND_MAP)
+			throw expected(MsgPackType.MAP);
+		return child(Objects.checkIndex(index, length) * 2 + 1);
+	}
+
+}
@@ -0,0 +1,618 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class ProjectingMsgPackSink extends AbstractProxyMsgPackByteSink {
+
+	private static final class Node {
+
+		byte[][] keys = new byte[0][];
+
+		Node[] keyChildren = new Node[0];
+
+		Node anyKey;
+
+		long[] indices = new long[0];
+
+		Node[] indexChildren = new Node[0];
+
+		Node anyIndex;
+
+		int pathIndex = -1;
+
+		Node() {}
+
+		Node keyChild(byte[] key, boolean create) {
+			for(int i = 0; i < keys.length; ++i) {
+				if(Arrays.equals(keys[i], key))
+					return keyChildren[i];
+			}
+			if(!create)
+				return null;
+			Node child = new Node();
+			keys = Arrays.copyOf(keys, keys.length + 1);
+			keyChildren = Arrays.copyOf(keyChildren, keyChildren.length + 1);
+			keys[keys.length - 1] = key;
+			keyChildren[keyChildren.length - 1] = child;
+			return child;
+		}
+
+		Node keyChild(byte[] bytes, int offset, int count) {
+			for(int i = 0; i < keys.length; ++i) {
+				byte[] key = keys[i];
+				if(key.length == count && Arrays.equals(key, 0, count, bytes, offset, offset + count))
+					return keyChildren[i];
+			}
+			return anyKey;
+		}
+
+		Node indexChild(long index, boolean create) {
+			for(int i = 0; i < indices.length; ++i) {
+				if(indices[i] == index)
+					return indexChildren[i];
+			}
+			if(!create)
+				return anyIndex;
+			Node child = new Node();
+			indices = Arrays.copyOf(indices, indices.length + 1);
+			indexChildren = Arrays.copyOf(indexChildren, indexChildren.length + 1);
+			indices[indices.length - 1] = index;
+			indexChildren[indexChildren.length - 1] = child;
+			return child;
+		}
+
+	}
+
+	private static final byte FRAME_ARRAY = (byte)0;
+
+	private static final byte FRAME_MAP_KEY = (byte)1;
+
+	private static final byte FRAME_MAP_VALUE = (byte)2;
+
+	private static final int INITIAL_DEPTH = 16;
+
+	private final MsgPackDecoder decoder;
+
+	private final String[] paths;
+
+	private final Node root = new Node();
+
+	// open containers on a projected path, innermost at depth - 1
+	private byte[] frameState = new byte[ProjectingMsgPackSink.INITIAL_DEPTH];
+
+	private Node[] frameNode = new Node[ProjectingMsgPackSink.INITIAL_DEPTH];
+
+	private Node[] framePending = new Node[ProjectingMsgPackSink.INITIAL_DEPTH];
+
+	private long[] frameIndex = new long[ProjectingMsgPackSink.INITIAL_DEPTH];
+
+	private long[] frameSize = new long[ProjectingMsgPackSink.INITIAL_DEPTH];
+
+	private int depth;
+
+	// nesting within a value that is being forwarded or discarded as a whole
+	private int passDepth;
+
+	private boolean forwarding;
+
+	private int matchedPathIndex = -1;
+
+	private byte[] keyBuffer = new byte[64];
+
+	private int keyLength;
+
+	public ProjectingMsgPackSink(MsgPackDecoder decoder, MsgPackByteSink slave, String... paths) {
+		super(slave);
+		this.decoder = decoder;
+		this.paths = paths.clone();
+		for(int i = 0; i < paths.length; ++i)
+			addPath(paths[i], i);
+		decoder.setSink(this);
+	}
+
+	public MsgPackDecoder getDecoder() {
+		return decoder;
+	}
+
+	public int getPathCount() {
+		return paths.length;
+	}
+
+	public String getPath(int index) {
+		return paths[index];
+	}
+
+	public int getMatchedPathIndex() {
+		return matchedPathIndex;
+	}
+
+	private void addPath(String path, int pathIndex) {
+		Node node = root;
+		int length = path.length();
+		int i = 0;
+		boolean first = true;
+		while(i < length) {
+			char c = path.charAt(i);
+			if(c == '[') {
+				int close = path.indexOf(']', i);
+				if(close < 0)
+					throw new IllegalArgumentException("Unterminated index in path '" + path + "'");
+				String index = path.substring(i + 1, close);
+				if(index.equals("*")) {
+					if(node.anyIndex == null)
+						node.anyIndex = new Node();
+					node = node.anyIndex;
+				}
+				else {
+					long value;
+					try {
+						value = Long.parseLong(index);
+					}
+					catch(NumberFormatException nfe) {
+						throw new IllegalArgumentException("Malformed index '" + index + "' in path '" + path + "'");
+					}
+					if(value < 0l)
+						throw new IllegalArgumentException("Negative index in path '" + path + "'");
+					node = node.indexChild(value, true);
+				}
+				i = close + 1;
+			}
+			else {
+				if(c == '.') {
+					if(first)
+						throw new IllegalArgumentException("Path must not start with '.': '" + path + "'");
+					++i;
+				}
+				int end = i;
+				while(end < length && path.charAt(end) != '.' && path.charAt(end) != '[')
+					++end;
+				if(end == i)
+					throw new IllegalArgumentException("Empty key in path '" + path + "'");
+				String key = path.substring(i, end);
+				if(key.equals("*")) {
+					if(node.anyKey == null)
+						node.anyKey = new Node();
+					node = node.anyKey;
+				}
+				else
+					node = node.keyChild(key.getBytes(StandardCharsets.UTF_8), true);
+				i = end;
+			}
+			first = false;
+		}
+		if(node.pathIndex < 0)
+			node.pathIndex = pathIndex;
+	}
+
+	private void pushFrame(byte state, Node node, long size) {
+		if(depth == frameState.length) {
+			int newSize = depth * 2;
+			frameState = Arrays.copyOf(frameState, newSize);
+			frameNode = Arrays.copyOf(frameNode, newSize);
+			framePending = Arrays.copyOf(framePending, newSize);
+			frameIndex = Arrays.copyOf(frameIndex, newSize);
+			frameSize = Arrays.copyOf(frameSize, newSize);
+		}
+		frameState[depth] = state;
+		frameNode[depth] = node;
+		framePending[depth] = null;
+		frameIndex[depth] = 0l;
+		frameSize[depth] = size;
+		++depth;
+	}
+
+	private boolean atKey() {
+		return passDepth == 0 && depth > 0 && frameState[depth - 1] == ProjectingMsgPackSink.FRAME_MAP_KEY;
+	}
+
+	// skips array elements that cannot match until the next one that might
+	private void planElements() {
+		int top = depth - 1;
+		Node node = frameNode[top];
+		long index = frameIndex[top];
+		long size = frameSize[top];
+		Node child = null;
+		while(index < size && (child = node.indexChild(index, false)) == null) {
+			decoder.skipValue();
+			++index;
+		}
+		frameIndex[top] = index;
+		framePending[top] = child;
+	}
+
+	private void keyComplete(Node child) {
+		int top = depth - 1;
+		if(child == null)
+			decoder.skipValue();
+		else {
+			framePending[top] = child;
+			frameState[top] = ProjectingMsgPackSink.FRAME_MAP_VALUE;
+		}
+	}
+
+	private void valueComplete() {
+		if(depth == 0) {
+			matchedPathIndex = -1;
+			return;
+		}
+		int top = depth - 1;
+		switch(frameState[top]) {
+			case ProjectingMsgPackSink.FRAME_ARRAY:
+				++frameIndex[top];
+				planElements();
+				break;
+			case ProjectingMsgPackSink.FRAME_MAP_KEY:
+				// non-string key
+				keyComplete(frameNode[top].anyKey);
+				break;
+			case ProjectingMsgPackSink.FRAME_MAP_VALUE:
+				frameState[top] = ProjectingMsgPackSink.FRAME_MAP_KEY;
+				break;
+			default:
+				throw new Doom("Unrecognized frame state: " + frameState[top]);
+		}
+		matchedPathIndex = -1;
+	}
+
+	// node the next value is matched against; null if it is not on any path
+	private Node nextNode() {
+		if(depth == 0)
+			return root;
+		int top = depth - 1;
+		return frameState[top] == ProjectingMsgPackSink.FRAME_MAP_KEY ? null : framePending[top];
+	}
+
+	// returns true iff a scalar value should be forwarded
+	private boolean scalar() {
+		if(passDepth > 0)
+			return forwarding;
+		Node node = nextNode();
+		if(node == null || node.pathIndex < 0) {
+			valueComplete();
+			return false;
+		}
+		matchedPathIndex = node.pathIndex;
+		return true;
+	}
+
+	// returns true iff the structure should be forwarded
+	private boolean beginPassable() {
+		if(passDepth > 0) {
+			++passDepth;
+			return forwarding;
+		}
+		Node node = nextNode();
+		passDepth = 1;
+		forwarding = node != null && node.pathIndex >= 0;
+		if(forwarding)
+			matchedPathIndex = node.pathIndex;
+		return forwarding;
+	}
+
+	// returns true iff the end of the structure should be forwarded
+	private boolean endPassable() {
+		if(--passDepth > 0)
+			return forwarding;
+		boolean forward = forwarding;
+		forwarding = false;
+		valueComplete();
+		return forward;
+	}
+
+	private void appendKey(byte[] bytes, int offset, int count) {
+		if(count <= 0)
+			return;
+		if(keyLength + count > keyBuffer.length)
+			keyBuffer = Arrays.copyOf(keyBuffer, Math.max(keyBuffer.length * 2, keyLength + count));
+		System.arraycopy(bytes, offset, keyBuffer, keyLength, count);
+		keyLength += count;
+	}
+
+	@Override
+	public void nil() throws IOException {
+		if(scalar())
+			super.nil();
+		valueDelivered();
+	}
+
+	@Override
+	public void bool(boolean value) throws IOException {
+		if(scalar())
+			super.bool(value);
+		valueDelivered();
+	}
+
+	@Override
+	public void integer(long value, boolean signed) throws IOException {
+		if(scalar())
+			super.integer(value, signed);
+		valueDelivered();
+	}
+
+	@Override
+	public void fraction(double value) throws IOException {
+		if(scalar())
+			super.fraction(value);
+		valueDelivered();
+	}
+
+	// completes a forwarded top-level scalar; dropped ones were completed in scalar()
+	private void valueDelivered() {
+		if(passDepth == 0 && matchedPathIndex >= 0)
+			valueComplete();
+	}
+
+	@Override
+	public void emptyString() throws IOException {
+		if(atKey()) {
+			keyComplete(frameNode[depth - 1].keyChild(keyBuffer, 0, 0));
+			return;
+		}
+		if(scalar())
+			super.emptyString();
+		valueDelivered();
+	}
+
+	@Override
+	public int string(byte[] bytes, int offset, int count) throws IOException {
+		if(atKey()) {
+			keyComplete(frameNode[depth - 1].keyChild(bytes, offset, count));
+			return count;
+		}
+		int written = scalar() ? super.string(bytes, offset, count) : count;
+		valueDelivered();
+		return written;
+	}
+
+	@Override
+	public void string(ByteBuffer bytes) throws IOException {
+		if(atKey()) {
+			keyLength = 0;
+			int count = bytes.remaining();
+			if(count > keyBuffer.length)
+				keyBuffer = new byte[count];
+			bytes.duplicate().get(keyBuffer, 0, count);
+			keyComplete(frameNode[depth - 1].keyChild(keyBuffer, 0, count));
+			return;
+		}
+		if(scalar())
+			super.string(bytes);
+		valueDelivered();
+	}
+
+	@Override
+	public void beginString(int totalSizeInBytes) throws IOException {
+		if(atKey()) {
+			keyLength = 0;
+			++passDepth;
+			forwarding = false;
+			return;
+		}
+		if(beginPassable())
+			super.beginString(totalSizeInBytes);
+	}
+
+	@Override
+	public int beginString(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		if(atKey()) {
+			keyLength = 0;
+			appendKey(bytes, offset, count);
+			++passDepth;
+			forwarding = false;
+			return count;
+		}
+		return beginPassable() ? super.beginString(totalSize, bytes, offset, count) : count;
+	}
+
+	// key strings are collected at passDepth 1 with forwarding off, directly within a FRAME_MAP_KEY frame
+	private boolean inKey() {
+		return passDepth == 1 && !forwarding && depth > 0
+				&& frameState[depth - 1] == ProjectingMsgPackSink.FRAME_MAP_KEY;
+	}
+
+	@Override
+	public int continueString(byte[] bytes, int offset, int count) throws IOException {
+		if(inKey()) {
+			appendKey(bytes, offset, count);
+			return count;
+		}
+		return forwarding ? super.continueString(bytes, offset, count) : count;
+	}
+
+	@Override
+	public void endString() throws IOException {
+		if(inKey()) {
+			passDepth = 0;
+			keyComplete(frameNode[depth - 1].keyChild(keyBuffer, 0, keyLength));
+			return;
+		}
+		if(endPassable())
+			super.endString();
+	}
+
+	@Override
+	public int endString(byte[] bytes, int offset, int count) throws IOException {
+		if(inKey()) {
+			appendKey(bytes, offset, count);
+			passDepth = 0;
+			keyComplete(frameNode[depth - 1].keyChild(keyBuffer, 0, keyLength));
+			return count;
+		}
+		boolean forward = forwarding;
+		int written = forward ? super.endString(bytes, offset, count) : count;
+		if(!forward || written == count)
+			endPassable();
+		return written;
+	}
+
+	@Override
+	public void emptyBinary() throws IOException {
+		if(scalar())
+			super.emptyBinary();
+		valueDelivered();
+	}
+
+	@Override
+	public int binary(byte[] bytes, int offset, int count) throws IOException {
+		int written = scalar() ? super.binary(bytes, offset, count) : count;
+		valueDelivered();
+		return written;
+	}
+
+	@Override
+	public void binary(ByteBuffer bytes) throws IOException {
+		if(scalar())
+			super.binary(bytes);
+		valueDelivered();
+	}
+
+	@Override
+	public void beginBinary(int totalSize) throws IOException {
+		if(beginPassable())
+			super.beginBinary(totalSize);
+	}
+
+	@Override
+	public int beginBinary(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		return beginPassable() ? super.beginBinary(totalSize, bytes, offset, count) : count;
+	}
+
+	@Override
+	public int continueBinary(byte[] bytes, int offset, int count) throws IOException {
+		return forwarding ? super.continueBinary(bytes, offset, count) : count;
+	}
+
+	@Override
+	public void endBinary() throws IOException {
+		if(endPassable())
+			super.endBinary();
+	}
+
+	@Override
+	public int endBinary(byte[] bytes, int offset, int count) throws IOException {
+		boolean forward = forwarding;
+		int written = forward ? super.endBinary(bytes, offset, count) : count;
+		if(!forward || written == count)
+			endPassable();
+		return written;
+	}
+
+	@Override
+	public void emptyArray() throws IOException {
+		if(scalar())
+			super.emptyArray();
+		valueDelivered();
+	}
+
+	@Override
+	public void beginArray(int size) throws IOException {
+		if(passDepth == 0 && !atKey()) {
+			Node node = nextNode();
+			if(node != null && node.pathIndex < 0) {
+				pushFrame(ProjectingMsgPackSink.FRAME_ARRAY, node, (long)size & 0xFFFFFFFFl);
+				planElements();
+				return;
+			}
+		}
+		if(beginPassable())
+			super.beginArray(size);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		if(passDepth == 0) {
+			--depth;
+			valueComplete();
+			return;
+		}
+		if(endPassable())
+			super.endArray();
+	}
+
+	@Override
+	public void emptyMap() throws IOException {
+		if(scalar())
+			super.emptyMap();
+		valueDelivered();
+	}
+
+	@Override
+	public void beginMap(int pairCount) throws IOException {
+		if(passDepth == 0 && !atKey()) {
+			Node node = nextNode();
+			if(node != null && node.pathIndex < 0) {
+				pushFrame(ProjectingMsgPackSink.FRAME_MAP_KEY, node, (long)pairCount & 0xFFFFFFFFl);
+				return;
+			}
+		}
+		if(beginPassable())
+			super.beginMap(pairCount);
+	}
+
+	@Override
+	public void endMap() throws IOException {
+		if(passDepth == 0) {
+			--depth;
+			valueComplete();
+			return;
+		}
+		if(endPassable())
+			super.endMap();
+	}
+
+	@Override
+	public void emptyExtension(byte type) throws IOException {
+		if(scalar())
+			super.emptyExtension(type);
+		valueDelivered();
+	}
+
+	@Override
+	public int extension(byte type, byte[] bytes, int offset, int count) throws IOException {
+		int written = scalar() ? super.extension(type, bytes, offset, count) : count;
+		valueDelivered();
+		return written;
+	}
+
+	@Override
+	public void extension(byte type, ByteBuffer bytes) throws IOException {
+		if(scalar())
+			super.extension(type, bytes);
+		valueDelivered();
+	}
+
+	@Override
+	public void beginExtension(byte type, int totalSize) throws IOException {
+		if(beginPassable())
+			super.beginExtension(type, totalSize);
+	}
+
+	@Override
+	public int beginExtension(byte type, int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		return beginPassable() ? super.beginExtension(type, totalSize, bytes, offset, count) : count;
+	}
+
+	@Override
+	public int continueExtension(byte[] bytes, int offset, int count) throws IOException {
+		return forwarding ? super.continueExtension(bytes, offset, count) : count;
+	}
+
+	@Override
+	public void endExtension() throws IOException {
+		if(endPassable())
+			super.endExtension();
+	}
+
+	@Override
+	public int endExtension(byte[] bytes, int offset, int count) throws IOException {
+		boolean forward = forwarding;
+		int written = forward ? super.endExtension(bytes, offset, count) : count;
+		if(!forward || written == count)
+			endPassable();
+		return written;
+	}
+
+}
@@ -0,0 +1,378 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+public class StringDecoderMsgPackSink extends AbstractProxyMsgPackSink implements MsgPackByteBufferSink {
+
+	public static final int DEFAULT_BUFFER_SIZE = 512;
+
+	public static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+	private final char[] charBuffer;
+
+	// sized to hold an entire string that arrived in one chunk
+	private char[] wholeBuffer;
+
+	// whichever of charBuffer and wholeBuffer holds the chars in [charOffset, charFill)
+	private char[] outBuffer;
+
+	private int charOffset;
+
+	private int charFill;
+
+	// payloads handed over as buffers are copied through this in chunks
+	private byte[] byteBuffer;
+
+	private final UTF8Decoder decoder = new UTF8Decoder();
+
+	private long announcedSize = -1l;
+
+	private long receivedSize;
+
+	private boolean begun;
+
+	private int skipBytes;
+
+	public StringDecoderMsgPackSink(MsgPackCharSink slave) {
+		this(slave, 0);
+	}
+
+	public StringDecoderMsgPackSink(MsgPackCharSink slave, int bufferSize) {
+		super(slave);
+		charBuffer = new char[bufferSize > 0 ? bufferSize : StringDecoderMsgPackSink.DEFAULT_BUFFER_SIZE];
+		outBuffer = charBuffer;
+	}
+
+	public MsgPackCharSink getSlave() {
+		return (MsgPackCharSink)getRawSlave();
+	}
+
+	public void setSlave(MsgPackCharSink slave) {
+		setRawSlave(slave);
+	}
+
+	public int getBufferSize() {
+		return charBuffer.length;
+	}
+
+	public UTF8Decoder getDecoder() {
+		return decoder;
+	}
+
+	@Override
+	public boolean isBlockingSink() {
+		return getSlave().isBlockingSink();
+	}
+
+	@Override
+	public boolean acceptsPayloadBuffers() {
+		/* Slices from the decoder are read-only and do not expose their array, so
+		 * they would have to be copied; the byte[] events already carry a whole
+		 * contiguous payload straight from the input.
+		 */
+		return false;
+	}
+
+	private void requireNoString() {
+		if(announcedSize >= 0l)
+			throw new IllegalStateException("Out-of-sequence event received: Still within string structure");
+	}
+
+	private void requireString() {
+		if(announcedSize < 0l)
+			throw new IllegalStateException("Out-of-sequence event received: Not within string structure");
+	}
+
+	private void addReceived(int count) throws SequenceSizeMismatchException {
+		receivedSize += (long)count;
+		if(receivedSize > announcedSize)
+			throw new SequenceSizeMismatchException(announcedSize, receivedSize, true);
+	}
+
+	private void requireComplete() throws SequenceSizeMismatchException {
+		if(receivedSize < announcedSize)
+			throw new SequenceSizeMismatchException(announcedSize, receivedSize, false);
+	}
+
+	private void finish() {
+		announcedSize = -1l;
+		begun = false;
+		charOffset = charFill = 0;
+		outBuffer = charBuffer;
+	}
+
+	private void useBuffer(int count) {
+		charOffset = charFill = 0;
+		if(begun || count <= charBuffer.length || count > StringDecoderMsgPackSink.MAX_RETAINED_BUFFER_SIZE) {
+			outBuffer = charBuffer;
+			return;
+		}
+		// the whole string is at hand: decode it into one buffer, so it can go out as one event
+		if(wholeBuffer == null || wholeBuffer.length < count)
+			wholeBuffer = new char[count];
+		outBuffer = wholeBuffer;
+	}
+
+	private int fill(byte[] bytes, int offset, int count, boolean last) throws StringEncodingException {
+		int consumed = 0;
+		while(consumed < count && charFill < outBuffer.length) {
+			consumed += decoder.decode(bytes, offset + consumed, count - consumed,
+					outBuffer, charFill, outBuffer.length - charFill);
+			charFill += decoder.getOutCount();
+		}
+		if(last && consumed == count) {
+			while(charFill < outBuffer.length && !decoder.isDrained())
+				charFill += decoder.drain(outBuffer, charFill, outBuffer.length - charFill);
+		}
+		return consumed;
+	}
+
+	private int emit(boolean last) throws IOException {
+		MsgPackCharSink slave = getSlave();
+		int written;
+		if(!begun) {
+			begun = true;
+			written = last ? slave.string(outBuffer, 0, charFill)
+					: slave.beginString((int)announcedSize, outBuffer, 0, charFill);
+		}
+		else if(last)
+			written = slave.endString(outBuffer, 0, charFill);
+		else
+			written = slave.continueString(outBuffer, 0, charFill);
+		if(written > charFill)
+			throw new TooManyElementsWrittenException(charFill, written);
+		return written;
+	}
+
+	private void emitBlocking(boolean last) throws IOException {
+		int written = emit(last);
+		if(written < charFill)
+			throw new SynchronicityViolationException(charFill, written);
+		charOffset = charFill;
+	}
+
+	private void reoffer() throws IOException {
+		int rest = charFill - charOffset;
+		int written = getSlave().continueString(outBuffer, charOffset, rest);
+		if(written > rest)
+			throw new TooManyElementsWrittenException(rest, written);
+		charOffset += written;
+	}
+
+	// copies the next chunk of the given payload into byteBuffer; returns its length
+	private int chunk(ByteBuffer bytes, int done, int count) {
+		int size = Math.min(Math.max(count, charBuffer.length), StringDecoderMsgPackSink.MAX_RETAINED_BUFFER_SIZE);
+		if(byteBuffer == null || byteBuffer.length < size)
+			byteBuffer = new byte[size];
+		int length = Math.min(count - done, byteBuffer.length);
+		bytes.get(bytes.position() + done, byteBuffer, 0, length);
+		return length;
+	}
+
+	private static void requireAll(int count, int written) throws IOException {
+		if(written > count)
+			throw new TooManyElementsWrittenException(count, written);
+		if(written < count)
+			throw new SynchronicityViolationException(count, written);
+	}
+
+	@Override
+	public int string(byte[] bytes, int offset, int count) throws IOException {
+		requireNoString();
+		beginString(count);
+		return endString(bytes, offset, count);
+	}
+
+	@Override
+	public void string(ByteBuffer bytes) throws IOException {
+		int count = bytes.remaining();
+		int length = chunk(bytes, 0, count);
+		if(length == count) {
+			StringDecoderMsgPackSink.requireAll(count, string(byteBuffer, 0, count));
+			return;
+		}
+		beginString(count);
+		for(int done = 0; done < count; done += length) {
+			if(done > 0)
+				length = chunk(bytes, done, count);
+			StringDecoderMsgPackSink.requireAll(length, done + length == count
+					? endString(byteBuffer, 0, length) : continueString(byteBuffer, 0, length));
+		}
+	}
+
+	@Override
+	public void beginString(int totalSizeInBytes) throws IOException {
+		requireNoString();
+		announcedSize = (long)totalSizeInBytes & 0xFFFFFFFFl;
+		receivedSize = 0l;
+		begun = false;
+		skipBytes = 0;
+		charOffset = charFill = 0;
+		decoder.reset();
+	}
+
+	@Override
+	public int beginString(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		beginString(totalSize);
+		return continueString(bytes, offset, count);
+	}
+
+	@Override
+	public int continueString(byte[] bytes, int offset, int count) throws IOException {
+		requireString();
+		if(getSlave().isBlockingSink())
+			return continueStringBlocking(bytes, offset, count);
+		else
+			return continueStringNonBlocking(bytes, offset, count);
+	}
+
+	private int continueStringBlocking(byte[] bytes, int offset, int count) throws IOException {
+		addReceived(count);
+		int consumed = 0;
+		while(consumed < count) {
+			useBuffer(0);
+			consumed += fill(bytes, offset + consumed, count - consumed, false);
+			if(charFill > 0)
+				emitBlocking(false);
+		}
+		return count;
+	}
+
+	private int continueStringNonBlocking(byte[] bytes, int offset, int count) throws IOException {
+		if(charFill > charOffset) {
+			reoffer();
+			return 0;
+		}
+		useBuffer(0);
+		int decoded = fill(bytes, offset, count, false);
+		addReceived(decoded);
+		charOffset = emit(false);
+		return decoded;
+	}
+
+	@Override
+	public void endString() throws IOException {
+		requireString();
+		if(skipBytes > 0 || charFill > charOffset)
+			throw new IllegalStateException("Out-of-sequence event received: Bytes yet to be re-offered");
+		requireComplete();
+		if(!begun && decoder.isDrained()) {
+			// nothing was ever decoded
+			getSlave().beginString((int)announcedSize);
+			getSlave().endString();
+			finish();
+			return;
+		}
+		for(;;) {
+			useBuffer(0);
+			while(charFill < outBuffer.length && !decoder.isDrained())
+				charFill += decoder.drain(outBuffer, charFill, outBuffer.length - charFill);
+			boolean last = decoder.isDrained();
+			emitBlocking(last);
+			if(last)
+				break;
+		}
+		finish();
+	}
+
+	@Override
+	public int endString(byte[] bytes, int offset, int count) throws IOException {
+		requireString();
+		if(getSlave().isBlockingSink())
+			return endStringBlocking(bytes, offset, count);
+		else
+			return endStringNonBlocking(bytes, offset, count);
+	}
+
+	private int endStringBlocking(byte[] bytes, int offset, int count) throws IOException {
+		addReceived(count);
+		requireComplete();
+		int consumed = 0;
+		for(;;) {
+			useBuffer(count - consumed);
+			consumed += fill(bytes, offset + consumed, count - consumed, true);
+			boolean last = consumed == count && decoder.isDrained();
+			emitBlocking(last);
+			if(last)
+				break;
+		}
+		finish();
+		return count;
+	}
+
+	private int endStringNonBlocking(byte[] bytes, int offset, int count) throws IOException {
+		if(charFill > charOffset) {
+			if(count <= 0)
+				throw new IllegalStateException("Out-of-sequence event received: Bytes yet to be re-offered");
+			reoffer();
+			return 0;
+		}
+		int consumed = 0;
+		int trueCount = count;
+		if(skipBytes > 0) {
+			if(count <= 0)
+				throw new IllegalStateException("Out-of-sequence event received: Bytes yet to be re-offered");
+			offset += skipBytes;
+			trueCount -= skipBytes;
+			consumed += skipBytes;
+			skipBytes = 0;
+		}
+		useBuffer(trueCount);
+		int decoded = fill(bytes, offset, trueCount, true);
+		addReceived(decoded);
+		consumed += decoded;
+		boolean last = consumed == count && decoder.isDrained();
+		if(last)
+			requireComplete();
+		charOffset = emit(last);
+		if(consumed == count && consumed > 0 && (!last || charOffset < charFill)) {
+			// hold back the last byte so that we get called again
+			skipBytes = 1;
+			--consumed;
+		}
+		else if(last) {
+			if(charOffset < charFill)
+				throw new SynchronicityViolationException(charFill, charOffset);
+			finish();
+		}
+		return consumed;
+	}
+
+	@Override
+	public void binary(ByteBuffer bytes) throws IOException {
+		MsgPackCharSink slave = getSlave();
+		int count = bytes.remaining();
+		int length = chunk(bytes, 0, count);
+		if(length == count) {
+			StringDecoderMsgPackSink.requireAll(count, slave.binary(byteBuffer, 0, count));
+			return;
+		}
+		slave.beginBinary(count);
+		for(int done = 0; done < count; done += length) {
+			if(done > 0)
+				length = chunk(bytes, done, count);
+			StringDecoderMsgPackSink.requireAll(length, done + length == count
+					? slave.endBinary(byteBuffer, 0, length) : slave.continueBinary(byteBuffer, 0, length));
+		}
+	}
+
+	@Override
+	public void extension(byte type, ByteBuffer bytes) throws IOException {
+		MsgPackCharSink slave = getSlave();
+		int count = bytes.remaining();
+		int length = chunk(bytes, 0, count);
+		if(length == count) {
+			StringDecoderMsgPackSink.requireAll(count, slave.extension(type, byteBuffer, 0, count));
+			return;
+		}
+		slave.beginExtension(type, count);
+		for(int done = 0; done < count; done += length) {
+			if(done > 0)
+				length = chunk(bytes, done, count);
+			StringDecoderMsgPackSink.requireAll(length, done + length == count
+					? slave.endExtension(byteBuffer, 0, length) : slave.continueExtension(byteBuffer, 0, length));
+		}
+	}
+
+}
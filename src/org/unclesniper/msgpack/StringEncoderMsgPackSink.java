@@ -1,23 +1,31 @@
 package org.unclesniper.msgpack;
 
+import java.util.Arrays;
 import java.io.IOException;
 
-public class StringEncoderMsgPackSink implements MsgPackCharSink {
+public class StringEncoderMsgPackSink implements MsgPackCharSink, MsgPackBackPressureSink {
 
 	public static final int DEFAULT_BUFFER_SIZE = 512;
 
+	public static final int MAX_RETAINED_SPILL_SIZE = 65536;
+
 	private MsgPackByteSink slave;
 
 	private byte[] byteBuffer;
 
+	// whichever of byteBuffer and spillBuffer holds the bytes in [bufferOffset, bufferFill)
+	private byte[] outBuffer;
+
+	private byte[] spillBuffer;
+
+	private char[] charBuffer;
+
 	private int bufferOffset;
 
 	private int bufferFill;
 
 	private final UTF8Encoder encoder = new UTF8Encoder();
 
-	private final UTF8Encoder lengthEncoder = new UTF8Encoder();
-
 	private long announcedSize = -1l;
 
 	private long receivedSize;
@@ -27,6 +35,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 	public StringEncoderMsgPackSink(MsgPackByteSink slave, int bufferSize) {
 		this.slave = slave;
 		byteBuffer = new byte[bufferSize > 0 ? bufferSize : StringEncoderMsgPackSink.DEFAULT_BUFFER_SIZE];
+		outBuffer = byteBuffer;
 	}
 
 	public MsgPackByteSink getSlave() {
@@ -50,6 +59,11 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		return slave.isBlockingSink();
 	}
 
+	@Override
+	public boolean isStalled() {
+		return MsgPackBackPressureSink.isSinkStalled(slave);
+	}
+
 	private void requireNoString() {
 		if(announcedSize >= 0l)
 			throw new IllegalStateException("Out-of-sequence event received: Still within string structure");
@@ -90,7 +104,16 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		slave.emptyString();
 	}
 
+	private void useByteBuffer() {
+		if(outBuffer != byteBuffer) {
+			if(spillBuffer.length > StringEncoderMsgPackSink.MAX_RETAINED_SPILL_SIZE)
+				spillBuffer = null;
+			outBuffer = byteBuffer;
+		}
+	}
+
 	private int fillBuffer(char[] chars, int offset, int count) throws StringEncodingException {
+		useByteBuffer();
 		int consumed = 0;
 		while(consumed < count && bufferFill < byteBuffer.length) {
 			consumed += encoder.encode(chars, offset + consumed, count - consumed,
@@ -102,15 +125,61 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		return consumed;
 	}
 
-	private static long strlen(UTF8Encoder encoder, char[] chars, int offset, int count)
-			throws StringEncodingException {
+	/* Total byte length of a string whose first chunk is in the buffer and whose
+	 * remaining chars encode to rest bytes, or -1 if that cannot be told up front.
+	 */
+	private long measureRest(long rest) {
+		int pendingBytes = encoder.getPendingByteCount();
+		if(pendingBytes < 0 || rest < 0l)
+			return -1l;
+		return (long)bufferFill + (long)pendingBytes + rest;
+	}
+
+	// encodes the rest of the string after the buffered first chunk into spillBuffer, growing it as needed
+	private void spillRest(char[] chars, int offset, int count) throws StringEncodingException {
+		int fill = bufferFill;
+		byte[] spill = spillBuffer;
+		if(spill == null || spill.length < fill * 2)
+			spill = new byte[fill * 2];
+		System.arraycopy(byteBuffer, 0, spill, 0, fill);
 		int consumed = 0;
-		long length = 0l;
-		while(consumed < count) {
-			consumed += encoder.encode(chars, offset + consumed, count - consumed, null, 0, 0);
-			length += (long)encoder.getOutCount();
+		for(;;) {
+			while(consumed < count && fill < spill.length) {
+				consumed += encoder.encode(chars, offset + consumed, count - consumed,
+						spill, fill, spill.length - fill);
+				fill += encoder.getOutCount();
+			}
+			while(fill < spill.length && !encoder.isDrained())
+				fill += encoder.drain(spill, fill, spill.length - fill);
+			if(consumed == count && encoder.isDrained())
+				break;
+			if(spill.length > Integer.MAX_VALUE / 2)
+				throw new IllegalArgumentException("String byte length exceeds maximum array size");
+			spill = Arrays.copyOf(spill, spill.length * 2);
 		}
-		return length;
+		spillBuffer = outBuffer = spill;
+		bufferFill = fill;
+	}
+
+	// emits a string of count chars that has been encoded into outBuffer in its entirety
+	private int stringBuffered(int count) throws IOException {
+		if(slave.isBlockingSink()) {
+			bufferOffset = bufferFill;
+			int written = slave.string(outBuffer, 0, bufferFill);
+			if(written > bufferFill)
+				throw new TooManyElementsWrittenException(bufferFill, written);
+			if(written < bufferFill)
+				throw new SynchronicityViolationException(bufferFill, written);
+			return count;
+		}
+		bufferOffset = slave.string(outBuffer, 0, bufferFill);
+		if(bufferOffset > bufferFill)
+			throw new TooManyElementsWrittenException(bufferFill, bufferOffset);
+		if(bufferOffset == bufferFill)
+			return count;
+		announcedSize = receivedSize = (long)bufferFill;
+		skipChars = 1;
+		return count - 1;
 	}
 
 	@Override
@@ -127,17 +196,13 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		encoder.reset();
 		int consumed = fillBuffer(chars, offset, count);
 		bufferOffset = bufferFill;
-		if(consumed == count && encoder.isDrained()) {
-			int written = slave.string(byteBuffer, 0, bufferFill);
-			if(written > bufferFill)
-				throw new TooManyElementsWrittenException(bufferFill, written);
-			if(written < bufferFill)
-				throw new SynchronicityViolationException(bufferFill, written);
-			return count;
+		if(consumed == count && encoder.isDrained())
+			return stringBuffered(count);
+		long tsize = measureRest(UTF8Encoder.encodedLength(chars, offset + consumed, count - consumed));
+		if(tsize < 0l) {
+			spillRest(chars, offset + consumed, count - consumed);
+			return stringBuffered(count);
 		}
-		encoder.copyStateInto(lengthEncoder);
-		long tsize = (long)bufferFill + StringEncoderMsgPackSink.strlen(lengthEncoder,
-				chars, offset + consumed, count - consumed);
 		if(tsize > 0xFFFFFFFFl)
 			throw new IllegalArgumentException("String byte length exceeds uint32 address space: " + tsize);
 		receivedSize = (long)bufferFill;
@@ -173,19 +238,18 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		bufferFill = 0;
 		encoder.reset();
 		int consumed = fillBuffer(chars, offset, count);
-		if(consumed == count && encoder.isDrained()) {
-			bufferOffset = slave.string(byteBuffer, 0, bufferFill);
-			if(bufferOffset > bufferFill)
-				throw new TooManyElementsWrittenException(bufferFill, bufferOffset);
-			if(bufferOffset == bufferFill)
-				return count;
-			announcedSize = receivedSize = (long)bufferFill;
-			skipChars = 1;
-			return count - 1;
+		if(consumed == count && encoder.isDrained())
+			return stringBuffered(count);
+		long tsize = measureRest(UTF8Encoder.encodedLength(chars, offset + consumed, count - consumed));
+		if(tsize < 0l) {
+			spillRest(chars, offset + consumed, count - consumed);
+			return stringBuffered(count);
 		}
-		encoder.copyStateInto(lengthEncoder);
-		long tsize = (long)bufferFill + StringEncoderMsgPackSink.strlen(lengthEncoder,
-				chars, offset + consumed, count - consumed);
+		return beginNonBlocking(tsize, consumed, count);
+	}
+
+	// announces a string of tsize bytes whose first consumed chars are in the buffer
+	private int beginNonBlocking(long tsize, int consumed, int count) throws IOException {
 		if(tsize > 0xFFFFFFFFl)
 			throw new IllegalArgumentException("String byte length exceeds uint32 address space: " + tsize);
 		receivedSize = (long)bufferFill;
@@ -202,6 +266,229 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		return consumed;
 	}
 
+	// copies count chars into a scratch array, reusing it unless that would retain too much
+	private char[] chars(CharSequence chars, int offset, int count) {
+		char[] buffer = charBuffer;
+		if(buffer == null || buffer.length < count) {
+			buffer = new char[Math.max(count, byteBuffer.length + 1)];
+			if(buffer.length <= StringEncoderMsgPackSink.MAX_RETAINED_SPILL_SIZE)
+				charBuffer = buffer;
+		}
+		if(chars instanceof String)
+			((String)chars).getChars(offset, offset + count, buffer, 0);
+		else {
+			for(int i = 0; i < count; ++i)
+				buffer[i] = chars.charAt(offset + i);
+		}
+		return buffer;
+	}
+
+	// how many chars to hand to the char[] methods at once; never splits a surrogate pair
+	private int window(CharSequence chars, int offset, int count) {
+		int n = Math.min(count, byteBuffer.length + 1);
+		if(n < count && Character.isHighSurrogate(chars.charAt(offset + n - 1)))
+			--n;
+		return n;
+	}
+
+	/* Copies the ASCII prefix of the count chars at offset into the buffer behind
+	 * bufferFill; returns its length. count must fit the room left in the buffer.
+	 */
+	private int copyASCII(CharSequence chars, int offset, int count) {
+		useByteBuffer();
+		byte[] out = byteBuffer;
+		int fill = bufferFill;
+		int n = 0;
+		if(chars instanceof String) {
+			// a bulk copy out of the String plus a narrowing pass beats charAt() per char
+			char[] buffer = chars(chars, offset, count);
+			while(n < count && buffer[n] < '\u0080') {
+				out[fill + n] = (byte)buffer[n];
+				++n;
+			}
+		}
+		else {
+			char c;
+			while(n < count && (c = chars.charAt(offset + n)) < '\u0080') {
+				out[fill + n] = (byte)c;
+				++n;
+			}
+		}
+		bufferFill = fill + n;
+		return n;
+	}
+
+	@Override
+	public int string(CharSequence chars, int offset, int count) throws IOException {
+		requireNoString();
+		if(slave.isBlockingSink())
+			return stringBlocking(chars, offset, count);
+		else
+			return stringNonBlocking(chars, offset, count);
+	}
+
+	private int stringBlocking(CharSequence chars, int offset, int count) throws IOException {
+		encoder.reset();
+		bufferFill = 0;
+		int ascii = copyASCII(chars, offset, Math.min(count, byteBuffer.length));
+		if(ascii == count)
+			return stringBuffered(count);
+		long rest = UTF8Encoder.encodedLength(chars, offset + ascii, count - ascii);
+		if(rest < 0l) {
+			// ill-formed surrogates are up to the ErrorHandler, so the length is unknown: spill
+			return stringBlocking(chars(chars, offset, count), 0, count);
+		}
+		long tsize = (long)ascii + rest;
+		if(tsize <= (long)byteBuffer.length) {
+			// everything fits behind the ASCII prefix already in the buffer
+			fillBuffer(chars(chars, offset + ascii, count - ascii), 0, count - ascii);
+			return stringBuffered(count);
+		}
+		if(tsize > 0xFFFFFFFFl)
+			throw new IllegalArgumentException("String byte length exceeds uint32 address space: " + tsize);
+		receivedSize = 0l;
+		int consumed = ascii;
+		// ASCII goes straight into the buffer, a window at a time, until the first other char
+		while(consumed < count && bufferFill == byteBuffer.length) {
+			continueBlocking(tsize);
+			bufferFill = 0;
+			consumed += copyASCII(chars, offset + consumed, Math.min(count - consumed, byteBuffer.length));
+		}
+		// from there on, the encoder appends to whatever ASCII is in the buffer
+		while(consumed < count) {
+			int n = window(chars, offset + consumed, count - consumed);
+			char[] buffer = chars(chars, offset + consumed, n);
+			int encoded = 0;
+			while(encoded < n || !encoder.isDrained()) {
+				if(bufferFill == byteBuffer.length) {
+					continueBlocking(tsize);
+					bufferFill = 0;
+				}
+				encoded += fillBuffer(buffer, encoded, n - encoded);
+			}
+			consumed += n;
+		}
+		if(bufferFill > 0)
+			continueBlocking(tsize);
+		if(receivedSize < tsize)
+			throw new SequenceSizeMismatchException(tsize, receivedSize, false);
+		slave.endString();
+		return count;
+	}
+
+	// hands the buffered chunk of a string of known size tsize to a blocking slave
+	private void continueBlocking(long tsize) throws IOException {
+		bufferOffset = bufferFill;
+		boolean first = receivedSize == 0l;
+		receivedSize += (long)bufferFill;
+		if(receivedSize > tsize)
+			throw new SequenceSizeMismatchException(tsize, receivedSize, true);
+		int written = first ? slave.beginString((int)tsize, byteBuffer, 0, bufferFill)
+				: slave.continueString(byteBuffer, 0, bufferFill);
+		if(written > bufferFill)
+			throw new TooManyElementsWrittenException(bufferFill, written);
+		if(written < bufferFill)
+			throw new SynchronicityViolationException(bufferFill, written);
+	}
+
+	private int stringNonBlocking(CharSequence chars, int offset, int count) throws IOException {
+		encoder.reset();
+		bufferFill = 0;
+		int ascii = copyASCII(chars, offset, Math.min(count, byteBuffer.length));
+		if(ascii == count)
+			return stringBuffered(count);
+		int consumed = ascii;
+		if(ascii < byteBuffer.length) {
+			// the encoder takes over at the first non-ASCII char, for the rest of this buffer only
+			int n = window(chars, offset + ascii, count - ascii);
+			consumed += fillBuffer(chars(chars, offset + ascii, n), 0, n);
+			if(consumed == count && encoder.isDrained())
+				return stringBuffered(count);
+		}
+		long tsize = measureRest(UTF8Encoder.encodedLength(chars, offset + consumed, count - consumed));
+		if(tsize < 0l) {
+			// ill-formed surrogates: start over on the char[] path, which spills
+			return stringNonBlocking(chars(chars, offset, count), 0, count);
+		}
+		consumed = beginNonBlocking(tsize, consumed, count);
+		if(ascii < byteBuffer.length)
+			return consumed;
+		// more ASCII windows, for as long as the slave keeps taking them whole
+		while(consumed < count && bufferOffset == bufferFill) {
+			bufferOffset = bufferFill = 0;
+			int n = copyASCII(chars, offset + consumed, Math.min(count - consumed, byteBuffer.length));
+			if(n == 0)
+				break;
+			consumed += n;
+			receivedSize += (long)n;
+			if(receivedSize > tsize)
+				throw new SequenceSizeMismatchException(tsize, receivedSize, true);
+			if(consumed < count) {
+				bufferOffset = slave.continueString(byteBuffer, 0, n);
+				if(bufferOffset > n)
+					throw new TooManyElementsWrittenException(n, bufferOffset);
+				continue;
+			}
+			if(receivedSize < tsize)
+				throw new SequenceSizeMismatchException(tsize, receivedSize, false);
+			bufferOffset = slave.endString(byteBuffer, 0, n);
+			if(bufferOffset > n)
+				throw new TooManyElementsWrittenException(n, bufferOffset);
+			if(bufferOffset < n) {
+				// hold back the last char, so that we get called again to re-offer the rest
+				skipChars = 1;
+				return count - 1;
+			}
+			announcedSize = -1l;
+		}
+		return consumed;
+	}
+
+	@Override
+	public int beginString(int totalSizeInBytes, CharSequence chars, int offset, int count) throws IOException {
+		int n = window(chars, offset, count);
+		int consumed = beginString(totalSizeInBytes, chars(chars, offset, n), 0, n);
+		if(n == count || !slave.isBlockingSink())
+			return consumed;
+		return n + continueString(chars, offset + n, count - n);
+	}
+
+	@Override
+	public int continueString(CharSequence chars, int offset, int count) throws IOException {
+		if(!slave.isBlockingSink()) {
+			int n = window(chars, offset, count);
+			return continueString(chars(chars, offset, n), 0, n);
+		}
+		int consumed = 0;
+		do {
+			int n = window(chars, offset + consumed, count - consumed);
+			continueString(chars(chars, offset + consumed, n), 0, n);
+			consumed += n;
+		} while(consumed < count);
+		return count;
+	}
+
+	@Override
+	public int endString(CharSequence chars, int offset, int count) throws IOException {
+		if(!slave.isBlockingSink()) {
+			int n = window(chars, offset, count);
+			if(n < count)
+				return continueString(chars(chars, offset, n), 0, n);
+			return endString(chars(chars, offset, n), 0, n);
+		}
+		int consumed = 0;
+		for(;;) {
+			int n = window(chars, offset + consumed, count - consumed);
+			char[] buffer = chars(chars, offset + consumed, n);
+			consumed += n;
+			if(consumed == count) {
+				endString(buffer, 0, n);
+				return count;
+			}
+			continueString(buffer, 0, n);
+		}
+	}
+
 	@Override
 	public void beginString(int totalSizeInBytes) throws IOException {
 		requireNoString();
@@ -249,6 +536,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 	}
 
 	private int beginStringNonBlocking(int totalSizeInBytes, char[] chars, int offset, int count) throws IOException {
+		bufferFill = 0;
 		encoder.reset();
 		int consumed = fillBuffer(chars, offset, count);
 		long tsize = (long)totalSizeInBytes & 0xFFFFFFFFl;
@@ -278,7 +566,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 	private int continueStringBlocking(char[] chars, int offset, int count) throws IOException {
 		if(bufferFill > bufferOffset) {
 			int rest = bufferFill - bufferOffset;
-			int written = slave.continueString(byteBuffer, bufferOffset, rest);
+			int written = slave.continueString(outBuffer, bufferOffset, rest);
 			bufferOffset += written;
 			if(written > rest)
 				throw new TooManyElementsWrittenException(rest, written);
@@ -312,7 +600,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 	private int continueStringNonBlocking(char[] chars, int offset, int count) throws IOException {
 		if(bufferFill > bufferOffset) {
 			int rest = bufferFill - bufferOffset;
-			int written = slave.continueString(byteBuffer, bufferOffset, rest);
+			int written = slave.continueString(outBuffer, bufferOffset, rest);
 			bufferOffset += written;
 			if(written > rest)
 				throw new TooManyElementsWrittenException(rest, written);
@@ -364,7 +652,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 	private int endStringBlocking(char[] chars, int offset, int count) throws IOException {
 		if(bufferFill > bufferOffset) {
 			int rest = bufferFill - bufferOffset;
-			int written = slave.continueString(byteBuffer, bufferOffset, rest);
+			int written = slave.continueString(outBuffer, bufferOffset, rest);
 			bufferOffset += written;
 			if(written > rest)
 				throw new TooManyElementsWrittenException(rest, written);
@@ -377,6 +665,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 			if(receivedSize < announcedSize)
 				throw new SequenceSizeMismatchException(announcedSize, receivedSize, false);
 			slave.endString();
+			announcedSize = -1l;
 			return 0;
 		}
 		offset += skipChars;
@@ -405,6 +694,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 			if(written < bufferFill)
 				throw new SynchronicityViolationException(bufferFill, written);
 		}
+		announcedSize = -1l;
 		return count;
 	}
 
@@ -413,7 +703,7 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 			if(count <= 0)
 				throw new IllegalStateException("Out-of-sequence event received: Characters yet to be re-offered");
 			int rest = bufferFill - bufferOffset;
-			int written = slave.continueString(byteBuffer, bufferOffset, rest);
+			int written = slave.continueString(outBuffer, bufferOffset, rest);
 			bufferOffset += written;
 			if(written > rest)
 				throw new TooManyElementsWrittenException(rest, written);
@@ -434,7 +724,8 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 		receivedSize += (long)bufferFill;
 		if(receivedSize > announcedSize)
 			throw new SequenceSizeMismatchException(announcedSize, receivedSize, consumed >= count);
-		if(consumed >= count) {
+		// the string can only end once the encoder has nothing left to drain
+		if(consumed >= count && encoder.isDrained()) {
 			if(receivedSize < announcedSize)
 				throw new SequenceSizeMismatchException(announcedSize, receivedSize, false);
 			bufferOffset = slave.endString(byteBuffer, 0, bufferFill);
@@ -448,6 +739,8 @@ public class StringEncoderMsgPackSink implements MsgPackCharSink {
 			skipChars = 1;
 			--consumed;
 		}
+		else if(consumed == count)
+			announcedSize = -1l;
 		return consumed;
 	}
 
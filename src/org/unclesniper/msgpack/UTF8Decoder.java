@@ -1,5 +1,9 @@
 package org.unclesniper.msgpack;
 
+import java.nio.ByteOrder;
+import java.lang.invoke.VarHandle;
+import java.lang.invoke.MethodHandles;
+
 public class UTF8Decoder {
 
 	public interface ErrorHandler {
@@ -200,6 +204,11 @@ public class UTF8Decoder {
 
 	public static final ErrorHandler DEFAULT_ERROR_HANDLER = ThrowingErrorHandler.instance;
 
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private static final long HIGH_BITS = 0x8080808080808080l;
+
 	private int pending;
 
 	private int partial;
@@ -290,6 +299,15 @@ public class UTF8Decoder {
 					outcount += count;
 				continue;
 			}
+			if(pending == 0 && !skipContinuationBytes && output != null) {
+				int run = UTF8Decoder.decodeASCII(input, inoff + consumed, insize - consumed,
+						output, outoff + outcount, outsize - outcount);
+				if(run > 0) {
+					consumed += run;
+					outcount += run;
+					continue;
+				}
+			}
 			int c = input[inoff + consumed++] & 0xFF;
 			if(skipContinuationBytes) {
 				if((c & 0xC0) == 0x80)
@@ -363,6 +381,29 @@ public class UTF8Decoder {
 		return consumed;
 	}
 
+	/* Widens the run of ASCII bytes at the start of the input, reading
+	 * eight bytes at a time to find where it ends; anything else is left
+	 * to the state machine in decode().
+	 */
+	private static int decodeASCII(byte[] input, int inoff, int insize, char[] output, int outoff, int outsize) {
+		int limit = Math.min(insize, outsize);
+		int i = 0;
+		while(i + 8 <= limit) {
+			long high = (long)UTF8Decoder.LONG_VIEW.get(input, inoff + i) & UTF8Decoder.HIGH_BITS;
+			int ascii = high == 0l ? 8 : Long.numberOfTrailingZeros(high) >>> 3;
+			for(int j = 0; j < ascii; ++j)
+				output[outoff + i + j] = (char)input[inoff + i + j];
+			i += ascii;
+			if(ascii < 8)
+				return i;
+		}
+		while(i < limit && input[inoff + i] >= (byte)0) {
+			output[outoff + i] = (char)input[inoff + i];
+			++i;
+		}
+		return i;
+	}
+
 	public int getOutCount() {
 		return outcount;
 	}
@@ -193,6 +193,9 @@ public class UTF8Encoder {
 
 	public static final ErrorHandler DEFAULT_ERROR_HANDLER = ThrowingErrorHandler.instance;
 
+	// chars per step of the ASCII run loop
+	private static final int BLOCK = 16;
+
 	private int pending;
 
 	private int partial;
@@ -237,6 +240,10 @@ public class UTF8Encoder {
 		return highSurrogate == 0 && replacement == null && pending == 0;
 	}
 
+	public int getPendingByteCount() {
+		return highSurrogate == 0 && replacement == null && skipLowSurrogate == null ? pending : -1;
+	}
+
 	public void copyStateInto(UTF8Encoder other) {
 		other.pending = pending;
 		other.partial = partial;
@@ -270,13 +277,20 @@ public class UTF8Encoder {
 					outcount += count;
 			}
 			else if(pending > 0) {
+				--pending;
 				if(output != null)
-					output[outoff + outcount] = (byte)((partial & 0x3F) | 0x80);
+					output[outoff + outcount] = (byte)(((partial >>> (pending * 6)) & 0x3F) | 0x80);
 				++outcount;
-				partial >>>= 6;
-				--pending;
 			}
 			else {
+				if(output != null && highSurrogate == 0 && skipLowSurrogate == null) {
+					int run = encodeRun(input, inoff + consumed, insize - consumed,
+							output, outoff + outcount, outsize - outcount);
+					if(run > 0) {
+						consumed += run;
+						continue;
+					}
+				}
 				int c = (int)input[inoff + consumed++];
 				if(skipLowSurrogate != null) {
 					switch(skipLowSurrogate) {
@@ -381,7 +395,7 @@ public class UTF8Encoder {
 					partial = c & 0x0003FFFF;
 					pending = 3;
 					if(output != null)
-						output[outoff + outcount] = (byte)((c >> 18) | 0xFC);
+						output[outoff + outcount] = (byte)((c >> 18) | 0xF0);
 					++outcount;
 				}
 			}
@@ -389,6 +403,109 @@ public class UTF8Encoder {
 		return consumed;
 	}
 
+	/* Encodes as many characters as fit entirely into the output, without
+	 * involving any state: stops at the first surrogate (which is left to
+	 * the state machine in encode(), as is any character that only fits
+	 * partially). ASCII goes sixteen chars per step and runs below U+0800
+	 * eight chars per step, each behind a single range test and room check.
+	 * The fixed-size inner loops are left for the JIT to unroll.
+	 */
+	private int encodeRun(char[] input, int inoff, int insize, byte[] output, int outoff, int outsize) {
+		int in = inoff, inend = inoff + insize;
+		int out = outoff, outend = outoff + outsize;
+		for(;;) {
+			while(inend - in >= UTF8Encoder.BLOCK && outend - out >= UTF8Encoder.BLOCK) {
+				int bits = 0;
+				for(int k = 0; k < UTF8Encoder.BLOCK; ++k)
+					bits |= (int)input[in + k];
+				if((bits & 0xFF80) != 0)
+					break;
+				for(int k = 0; k < UTF8Encoder.BLOCK; ++k)
+					output[out + k] = (byte)input[in + k];
+				in += UTF8Encoder.BLOCK;
+				out += UTF8Encoder.BLOCK;
+			}
+			// two bytes at most per char, so eight chars always fit into sixteen bytes
+			while(inend - in >= 8 && outend - out >= 16) {
+				int bits = 0;
+				for(int k = 0; k < 8; ++k)
+					bits |= (int)input[in + k];
+				if((bits & 0xF800) != 0)
+					break;
+				for(int k = 0; k < 8; ++k) {
+					int c = (int)input[in + k];
+					if(c < 0x80)
+						output[out++] = (byte)c;
+					else {
+						output[out++] = (byte)((c >> 6) | 0xC0);
+						output[out++] = (byte)((c & 0x3F) | 0x80);
+					}
+				}
+				in += 8;
+			}
+			if(in >= inend)
+				break;
+			int c = (int)input[in];
+			if(c < 0x80) {
+				if(out >= outend)
+					break;
+				output[out++] = (byte)c;
+			}
+			else if(c < 0x800) {
+				if(outend - out < 2)
+					break;
+				output[out++] = (byte)((c >> 6) | 0xC0);
+				output[out++] = (byte)((c & 0x3F) | 0x80);
+			}
+			else if((c & 0xF800) != 0xD800) {
+				if(outend - out < 3)
+					break;
+				output[out++] = (byte)((c >> 12) | 0xE0);
+				output[out++] = (byte)(((c >> 6) & 0x3F) | 0x80);
+				output[out++] = (byte)((c & 0x3F) | 0x80);
+			}
+			else
+				break;
+			++in;
+		}
+		outcount += out - outoff;
+		return in - inoff;
+	}
+
+	public static long encodedLength(char[] input, int inoff, int insize) {
+		return UTF8Encoder.encodedLength(input, null, inoff, insize);
+	}
+
+	public static long encodedLength(CharSequence input, int inoff, int insize) {
+		return UTF8Encoder.encodedLength(null, input, inoff, insize);
+	}
+
+	// reads from array if given, from sequence otherwise
+	private static long encodedLength(char[] array, CharSequence sequence, int inoff, int insize) {
+		long length = (long)insize;
+		int end = inoff + insize;
+		for(int i = inoff; i < end; ++i) {
+			int c = (int)(array != null ? array[i] : sequence.charAt(i));
+			if(c < 0x80)
+				continue;
+			if(c < 0x800)
+				++length;
+			else if((c & 0xF800) != 0xD800)
+				length += 2l;
+			else {
+				// only well-formed pairs are measured; anything else is up to the ErrorHandler
+				if((c & 0x0400) != 0 || i + 1 == end)
+					return -1l;
+				int low = (int)(array != null ? array[i + 1] : sequence.charAt(i + 1));
+				if((low & 0xFC00) != 0xDC00)
+					return -1l;
+				++i;
+				length += 2l;
+			}
+		}
+		return length;
+	}
+
 	public int getOutCount() {
 		return outcount;
 	}
@@ -396,7 +513,7 @@ public class UTF8Encoder {
 	public int drain(byte[] output, int outoff, int outsize) throws StringEncodingException {
 		outcount = 0;
 		while((highSurrogate != 0 || replacement != null || pending > 0)
-				|| (output == null || outcount < outsize)) {
+				&& (output == null || outcount < outsize)) {
 			if(replacement != null) {
 				int count = replacement.drain(output, outoff + outcount, outsize - outcount);
 				if(count <= 0)
@@ -408,11 +525,10 @@ public class UTF8Encoder {
 					outcount += count;
 			}
 			else if(pending > 0) {
+				--pending;
 				if(output != null)
-					output[outoff + outcount] = (byte)((partial & 0x3F) | 0x80);
+					output[outoff + outcount] = (byte)(((partial >>> (pending * 6)) & 0x3F) | 0x80);
 				++outcount;
-				partial >>>= 6;
-				--pending;
 			}
 			else {
 				if(recover == null)
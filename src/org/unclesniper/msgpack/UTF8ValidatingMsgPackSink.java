@@ -0,0 +1,83 @@
+package org.unclesniper.msgpack;
+
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+public class UTF8ValidatingMsgPackSink extends AbstractProxyMsgPackByteSink {
+
+	private final UTF8Validator validator = new UTF8Validator();
+
+	// bytes at the start of the next chunk that were validated, but not accepted by the slave
+	private int validatedAhead;
+
+	public UTF8ValidatingMsgPackSink(MsgPackByteSink slave) {
+		super(slave);
+	}
+
+	public UTF8Validator getValidator() {
+		return validator;
+	}
+
+	private void validate(byte[] bytes, int offset, int count) throws IOException {
+		int skip = Math.min(validatedAhead, count);
+		validator.validate(bytes, offset + skip, count - skip);
+	}
+
+	private int forwarded(int count, int written) {
+		validatedAhead = count - written;
+		return written;
+	}
+
+	@Override
+	public int string(byte[] bytes, int offset, int count) throws IOException {
+		validator.reset();
+		validatedAhead = 0;
+		validator.validate(bytes, offset, count);
+		validator.finish();
+		return forwarded(count, super.string(bytes, offset, count));
+	}
+
+	@Override
+	public void string(ByteBuffer bytes) throws IOException {
+		validator.reset();
+		validatedAhead = 0;
+		validator.validate(bytes);
+		validator.finish();
+		super.string(bytes);
+	}
+
+	@Override
+	public void beginString(int totalSizeInBytes) throws IOException {
+		validator.reset();
+		validatedAhead = 0;
+		super.beginString(totalSizeInBytes);
+	}
+
+	@Override
+	public int beginString(int totalSize, byte[] bytes, int offset, int count) throws IOException {
+		validator.reset();
+		validatedAhead = 0;
+		validator.validate(bytes, offset, count);
+		return forwarded(count, super.beginString(totalSize, bytes, offset, count));
+	}
+
+	@Override
+	public int continueString(byte[] bytes, int offset, int count) throws IOException {
+		validate(bytes, offset, count);
+		return forwarded(count, super.continueString(bytes, offset, count));
+	}
+
+	@Override
+	public void endString() throws IOException {
+		validator.finish();
+		super.endString();
+	}
+
+	@Override
+	public int endString(byte[] bytes, int offset, int count) throws IOException {
+		validate(bytes, offset, count);
+		validator.finish();
+		return forwarded(count, super.endString(bytes, offset, count));
+	}
+
+}
@@ -0,0 +1,181 @@
+package org.unclesniper.msgpack;
+
+import java.util.Arrays;
+import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
+import java.lang.invoke.VarHandle;
+import java.lang.invoke.MethodHandles;
+
+public class UTF8Validator {
+
+	/* Byte classes:
+	 *    0: 00..7F
+	 *    1: 80..8F
+	 *    2: 90..9F
+	 *    3: A0..BF
+	 *    4: C2..DF
+	 *    5: E0
+	 *    6: E1..EC, EE..EF
+	 *    7: ED
+	 *    8: F0
+	 *    9: F1..F3
+	 *   10: F4
+	 *   11: C0, C1, F5..FF
+	 */
+	private static final int CLASS_COUNT = 12;
+
+	private static final int ACCEPT = 0;
+
+	private static final int CONT1 = 1;
+
+	private static final int CONT2 = 2;
+
+	private static final int CONT3 = 3;
+
+	// E0: next must be A0..BF (no overlongs)
+	private static final int AFTER_E0 = 4;
+
+	// ED: next must be 80..9F (no surrogates)
+	private static final int AFTER_ED = 5;
+
+	// F0: next must be 90..BF (no overlongs)
+	private static final int AFTER_F0 = 6;
+
+	// F4: next must be 80..8F (nothing beyond U+10FFFF)
+	private static final int AFTER_F4 = 7;
+
+	private static final int REJECT = 8;
+
+	private static final byte[] CLASSES = new byte[256];
+
+	private static final byte[] TRANSITIONS = new byte[UTF8Validator.REJECT * UTF8Validator.CLASS_COUNT];
+
+	private static final byte[] MISSING = {0, 1, 2, 3, 2, 2, 3, 3};
+
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private static final long HIGH_BITS = 0x8080808080808080l;
+
+	// buffers without an accessible array are validated in chunks of this size
+	private static final int SCRATCH_SIZE = 1024;
+
+	static {
+		UTF8Validator.classify(0x00, 0x7F, 0);
+		UTF8Validator.classify(0x80, 0x8F, 1);
+		UTF8Validator.classify(0x90, 0x9F, 2);
+		UTF8Validator.classify(0xA0, 0xBF, 3);
+		UTF8Validator.classify(0xC0, 0xC1, 11);
+		UTF8Validator.classify(0xC2, 0xDF, 4);
+		UTF8Validator.classify(0xE0, 0xE0, 5);
+		UTF8Validator.classify(0xE1, 0xEF, 6);
+		UTF8Validator.classify(0xED, 0xED, 7);
+		UTF8Validator.classify(0xF0, 0xF0, 8);
+		UTF8Validator.classify(0xF1, 0xF3, 9);
+		UTF8Validator.classify(0xF4, 0xF4, 10);
+		UTF8Validator.classify(0xF5, 0xFF, 11);
+		Arrays.fill(UTF8Validator.TRANSITIONS, (byte)UTF8Validator.REJECT);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 0, UTF8Validator.ACCEPT);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 4, UTF8Validator.CONT1);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 5, UTF8Validator.AFTER_E0);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 6, UTF8Validator.CONT2);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 7, UTF8Validator.AFTER_ED);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 8, UTF8Validator.AFTER_F0);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 9, UTF8Validator.CONT3);
+		UTF8Validator.transition(UTF8Validator.ACCEPT, 10, UTF8Validator.AFTER_F4);
+		for(int c = 1; c <= 3; ++c) {
+			UTF8Validator.transition(UTF8Validator.CONT1, c, UTF8Validator.ACCEPT);
+			UTF8Validator.transition(UTF8Validator.CONT2, c, UTF8Validator.CONT1);
+			UTF8Validator.transition(UTF8Validator.CONT3, c, UTF8Validator.CONT2);
+		}
+		UTF8Validator.transition(UTF8Validator.AFTER_E0, 3, UTF8Validator.CONT1);
+		UTF8Validator.transition(UTF8Validator.AFTER_ED, 1, UTF8Validator.CONT1);
+		UTF8Validator.transition(UTF8Validator.AFTER_ED, 2, UTF8Validator.CONT1);
+		UTF8Validator.transition(UTF8Validator.AFTER_F0, 2, UTF8Validator.CONT2);
+		UTF8Validator.transition(UTF8Validator.AFTER_F0, 3, UTF8Validator.CONT2);
+		UTF8Validator.transition(UTF8Validator.AFTER_F4, 1, UTF8Validator.CONT2);
+	}
+
+	private int state;
+
+	private int sequenceLength;
+
+	private byte[] scratch;
+
+	public UTF8Validator() {}
+
+	private static void classify(int from, int to, int byteClass) {
+		for(int b = from; b <= to; ++b)
+			UTF8Validator.CLASSES[b] = (byte)byteClass;
+	}
+
+	private static void transition(int from, int byteClass, int to) {
+		UTF8Validator.TRANSITIONS[from * UTF8Validator.CLASS_COUNT + byteClass] = (byte)to;
+	}
+
+	public void reset() {
+		state = UTF8Validator.ACCEPT;
+	}
+
+	public boolean isComplete() {
+		return state == UTF8Validator.ACCEPT;
+	}
+
+	public void validate(byte[] bytes, int offset, int count) throws IllegalUTF8SequenceByteException {
+		int end = offset + count;
+		int s = state;
+		int i = offset;
+		while(i < end) {
+			if(s == UTF8Validator.ACCEPT) {
+				// skip ASCII eight bytes at a time
+				while(end - i >= 8) {
+					long high = (long)UTF8Validator.LONG_VIEW.get(bytes, i) & UTF8Validator.HIGH_BITS;
+					if(high != 0l) {
+						i += Long.numberOfTrailingZeros(high) >>> 3;
+						break;
+					}
+					i += 8;
+				}
+				if(i >= end)
+					break;
+			}
+			int b = bytes[i++] & 0xFF;
+			int next = UTF8Validator.TRANSITIONS[s * UTF8Validator.CLASS_COUNT + UTF8Validator.CLASSES[b]];
+			if(next == UTF8Validator.REJECT) {
+				state = UTF8Validator.ACCEPT;
+				throw new IllegalUTF8SequenceByteException((byte)b, s == UTF8Validator.ACCEPT);
+			}
+			if(s == UTF8Validator.ACCEPT && next != UTF8Validator.ACCEPT)
+				sequenceLength = UTF8Validator.MISSING[next] + 1;
+			s = next;
+		}
+		state = s;
+	}
+
+	public void validate(ByteBuffer bytes) throws IllegalUTF8SequenceByteException {
+		if(bytes.hasArray()) {
+			validate(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			return;
+		}
+		// read-only and direct buffers: bulk-copy, so the array path can skip ASCII a word at a time
+		if(scratch == null)
+			scratch = new byte[UTF8Validator.SCRATCH_SIZE];
+		int end = bytes.limit();
+		int i = bytes.position();
+		while(i < end) {
+			int length = Math.min(end - i, UTF8Validator.SCRATCH_SIZE);
+			bytes.get(i, scratch, 0, length);
+			validate(scratch, 0, length);
+			i += length;
+		}
+	}
+
+	public void finish() throws IncompleteUTF8SequenceException {
+		if(state == UTF8Validator.ACCEPT)
+			return;
+		int missing = UTF8Validator.MISSING[state];
+		state = UTF8Validator.ACCEPT;
+		throw new IncompleteUTF8SequenceException(missing, sequenceLength);
+	}
+
+}
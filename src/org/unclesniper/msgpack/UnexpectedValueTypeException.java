@@ -0,0 +1,24 @@
+package org.unclesniper.msgpack;
+
+public class UnexpectedValueTypeException extends MsgPackWireFormatException {
+
+	private final MsgPackType expectedType;
+
+	private final MsgPackType actualType;
+
+	public UnexpectedValueTypeException(MsgPackType expectedType, MsgPackType actualType) {
+		super("Expected " + expectedType.name().toLowerCase() + " value, but found "
+				+ actualType.name().toLowerCase() + " value");
+		this.expectedType = expectedType;
+		this.actualType = actualType;
+	}
+
+	public MsgPackType getExpectedType() {
+		return expectedType;
+	}
+
+	public MsgPackType getActualType() {
+		return actualType;
+	}
+
+}